@@ -1,7 +0,0 @@
-package com.timfan.lox;
-
-class Break extends RuntimeException {
-  Break() {
-    super(null, null, false, false);
-  } 
-}
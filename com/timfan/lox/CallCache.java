@@ -0,0 +1,89 @@
+package com.timfan.lox;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+/**
+ * The inline cache of a single call site (an Expr.Call): the callee it called last, which has already
+ * been checked to be callable with the site's number of arguments. most call sites only ever call
+ * the one function, so calling it again is an identity check, rather than an instanceof and a call to arity().
+ *
+ * a LoxFunction is also a hit when it was made from the same declaration as the cached one,
+ * so that a call to a closure that is made again and again (like a lambda made in a loop) still hits.
+ *
+ * with --call-stats, every call site's hits and misses are printed once the program has run.
+ *
+ * (a call site called from more than one thread at once, by pmap, can race on its cache,
+ * which is fine: every callee it is ever set to has been checked for the site, and the counts are only a guide.)
+ */
+final class CallCache {
+  private static List<CallCache> recorded = null; // every call site's cache, with --call-stats.
+
+  private final Token paren;
+  private LoxCallable callable = null; // the callee last called,
+  private Stmt.Function declaration = null; // and its declaration, if it is a LoxFunction.
+  private long hits = 0;
+  private long misses = 0;
+
+  CallCache(Token paren) {
+    this.paren = paren;
+    if (recorded != null) recorded.add(this);
+  }
+  /**
+   * @return The cache of expr, made on its first call.
+   */
+  static CallCache of(Expr.Call expr) {
+    if (expr.cache == null) expr.cache = new CallCache(expr.paren);
+    return expr.cache;
+  }
+  /**
+   * @return callee, once it is known to be a LoxCallable that takes arguments arguments.
+   * @throws RuntimeError If it isn't.
+   */
+  LoxCallable check(Object callee, int arguments) {
+    if ((callee == callable && callable != null) // nil is never callable, even before anything has been called.
+        || (declaration != null && callee instanceof LoxFunction && ((LoxFunction)callee).declaration == declaration)) {
+      hits++;
+      return (LoxCallable)callee;
+    }
+    misses++;
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+    LoxCallable function = (LoxCallable)callee;
+    if (arguments != function.arity()) {
+      throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + arguments + ".");
+    }
+    callable = function;
+    declaration = function instanceof LoxFunction ? ((LoxFunction)function).declaration : null;
+    return function;
+  }
+  Token paren() {
+    return paren;
+  }
+
+  /**
+   * From now on, keep every call site's cache, for report.
+   */
+  static void record() {
+    recorded = Collections.synchronizedList(new ArrayList<>());
+  }
+  /**
+   * Prints the hits and misses of every call site that has been called, in the order of their lines.
+   */
+  static void report(PrintStream out) {
+    if (recorded == null) return;
+    List<CallCache> caches;
+    synchronized (recorded) {
+      caches = new ArrayList<>(recorded);
+    }
+    caches.sort(Comparator.comparingInt(cache -> cache.paren.line));
+    for (CallCache cache : caches) {
+      long calls = cache.hits + cache.misses;
+      if (calls == 0) continue;
+      out.printf("[line %d] %d calls, %d hits (%.1f%%), %d misses%s%n", cache.paren.line, calls, cache.hits,
+          100.0 * cache.hits / calls, cache.misses, cache.callable == null ? "" : ", last called " + cache.callable);
+    }
+  }
+}
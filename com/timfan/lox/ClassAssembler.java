@@ -0,0 +1,439 @@
+package com.timfan.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes out the bytes of a single JVM class file, for JvmCompiler.
+ *
+ * only as much of the class file format as JvmCompiler needs: a constant pool,
+ * static fields, and methods whose code only ever deals in references and ints (and catches the odd exception).
+ * the class files are version 49 (Java 5), the last version that does not need
+ * a StackMapTable, so the JVM works out the types on the stack itself when it verifies them.
+ */
+final class ClassAssembler {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private final String name;
+  private final String superName;
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndices = new HashMap<>();
+  private int poolCount = 1; // constant pool indices start at 1.
+  private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+  private int fieldCount = 0;
+  private final List<Method> methods = new ArrayList<>();
+
+  ClassAssembler(String name, String superName) {
+    this.name = name;
+    this.superName = superName;
+  }
+
+  /**
+   * Thrown when what was asked for does not fit in a class file,
+   * e.g. a method whose code is longer than a branch can jump.
+   */
+  static class TooLarge extends RuntimeException {
+    TooLarge(String message) {
+      super(message);
+    }
+  }
+
+  void field(int access, String fieldName, String descriptor) {
+    DataOutputStream out = new DataOutputStream(fields);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(fieldName));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0); // no attributes.
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    fieldCount++;
+  }
+
+  Method method(int access, String methodName, String descriptor) {
+    Method method = new Method(access, methodName, descriptor);
+    methods.add(method);
+    return method;
+  }
+
+  byte[] toByteArray() {
+    int thisClass = classRef(name);
+    int superClass = classRef(superName);
+    int code = utf8("Code");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      if (poolCount > 0xFFFF) throw new TooLarge("Too many constants in one class.");
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // no interfaces.
+      out.writeShort(fieldCount);
+      fields.writeTo(out);
+      out.writeShort(methods.size());
+      for (Method method : methods) {
+        method.write(out, code);
+      }
+      out.writeShort(0); // no class attributes.
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    return bytes.toByteArray();
+  }
+
+  // the constant pool. each entry is only ever added once, keyed on what it holds.
+
+  private int constant(String key, int tag, int a, int b) {
+    Integer index = poolIndices.get(key);
+    if (index != null) return index;
+    try {
+      poolOut.writeByte(tag);
+      poolOut.writeShort(a);
+      if (b >= 0) poolOut.writeShort(b);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    poolIndices.put(key, poolCount);
+    return poolCount++;
+  }
+  int utf8(String text) {
+    String key = "U" + text;
+    Integer index = poolIndices.get(key);
+    if (index != null) return index;
+    try {
+      poolOut.writeByte(1);
+      poolOut.writeUTF(text);
+    } catch (IOException error) {
+      // writeUTF refuses strings longer than 65535 bytes.
+      throw new TooLarge("String constant too long.");
+    }
+    poolIndices.put(key, poolCount);
+    return poolCount++;
+  }
+  int classRef(String internalName) {
+    return constant("C" + internalName, 7, utf8(internalName), -1);
+  }
+  int string(String text) {
+    return constant("S" + text, 8, utf8(text), -1);
+  }
+  int integer(int value) {
+    Integer index = poolIndices.get("I" + value);
+    if (index != null) return index;
+    try {
+      poolOut.writeByte(3);
+      poolOut.writeInt(value);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    poolIndices.put("I" + value, poolCount);
+    return poolCount++;
+  }
+  private int nameAndType(String memberName, String descriptor) {
+    return constant("N" + memberName + " " + descriptor, 12, utf8(memberName), utf8(descriptor));
+  }
+  int fieldRef(String owner, String memberName, String descriptor) {
+    return constant("F" + owner + "." + memberName + " " + descriptor, 9,
+        classRef(owner), nameAndType(memberName, descriptor));
+  }
+  int methodRef(String owner, String memberName, String descriptor) {
+    return constant("M" + owner + "." + memberName + descriptor, 10,
+        classRef(owner), nameAndType(memberName, descriptor));
+  }
+  int interfaceMethodRef(String owner, String memberName, String descriptor) {
+    return constant("J" + owner + "." + memberName + descriptor, 11,
+        classRef(owner), nameAndType(memberName, descriptor));
+  }
+
+  /**
+   * Where a jump goes. The stack depth there is whatever it was at the first jump to it.
+   */
+  static class Label {
+    int position = -1;
+    int stack = -1;
+  }
+
+  /**
+   * The code of one method. Every instruction keeps count of how deep the operand stack is,
+   * so that max_stack comes for free, and every new local variable bumps max_locals.
+   */
+  final class Method {
+    private final int access;
+    private final String methodName;
+    private final int nameIndex;
+    private final int descriptorIndex;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<int[]> jumps = new ArrayList<>(); // {position of the instruction, position of the offset}.
+    private final List<Label> jumpLabels = new ArrayList<>();
+    private final List<Label[]> handlers = new ArrayList<>(); // {start, end, handler} of each exception handler,
+    private final List<Integer> handlerTypes = new ArrayList<>(); // and the class it catches.
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    private Method(int access, String methodName, String descriptor) {
+      this.access = access;
+      this.methodName = methodName;
+      this.nameIndex = utf8(methodName);
+      this.descriptorIndex = utf8(descriptor);
+      this.maxLocals = slots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+    }
+
+    int newLocal() {
+      return maxLocals++;
+    }
+
+    private void op(int opcode, int stackChange) {
+      code.write(opcode);
+      stack += stackChange;
+      if (stack > maxStack) maxStack = stack;
+    }
+    private void u1(int value) {
+      code.write(value);
+    }
+    private void u2(int value) {
+      code.write(value >> 8);
+      code.write(value);
+    }
+    private void u4(int value) {
+      u2(value >> 16);
+      u2(value);
+    }
+    private void local(int opcode, int index, int stackChange) {
+      if (index > 0xFF) {
+        op(0xC4, 0); // wide.
+        op(opcode, stackChange);
+        u2(index);
+      } else {
+        op(opcode, stackChange);
+        u1(index);
+      }
+    }
+
+    void iload(int index) { local(0x15, index, 1); }
+    void aload(int index) { local(0x19, index, 1); }
+    void astore(int index) { local(0x3A, index, -1); }
+    void aconstNull() { op(0x01, 1); }
+    void iconst(int value) {
+      if (value >= -1 && value <= 5) {
+        op(0x03 + value, 1);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op(0x10, 1);
+        u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op(0x11, 1);
+        u2(value);
+      } else {
+        ldc(integer(value));
+      }
+    }
+    void ldcString(String text) {
+      ldc(string(text));
+    }
+    private void ldc(int index) {
+      if (index > 0xFF) {
+        op(0x13, 1);
+        u2(index);
+      } else {
+        op(0x12, 1);
+        u1(index);
+      }
+    }
+    void aaload() { op(0x32, -1); }
+    void aastore() { op(0x53, -3); }
+    void pop() { op(0x57, -1); }
+    void dup() { op(0x59, 1); }
+    void dup2() { op(0x5C, 2); }
+    void swap() { op(0x5F, 0); }
+    void areturn() { op(0xB0, -1); stack = 0; }
+    void vreturn() { op(0xB1, 0); stack = 0; }
+    void athrow() { op(0xBF, -1); stack = 0; }
+
+    void getstatic(String owner, String fieldName, String fieldDescriptor) {
+      op(0xB2, slots(fieldDescriptor));
+      u2(fieldRef(owner, fieldName, fieldDescriptor));
+    }
+    void putstatic(String owner, String fieldName, String fieldDescriptor) {
+      op(0xB3, -slots(fieldDescriptor));
+      u2(fieldRef(owner, fieldName, fieldDescriptor));
+    }
+    void getfield(String owner, String fieldName, String fieldDescriptor) {
+      op(0xB4, slots(fieldDescriptor) - 1);
+      u2(fieldRef(owner, fieldName, fieldDescriptor));
+    }
+    void invokestatic(String owner, String name, String methodDescriptor) {
+      op(0xB8, returnSlots(methodDescriptor) - slots(methodDescriptor));
+      u2(methodRef(owner, name, methodDescriptor));
+    }
+    void invokevirtual(String owner, String name, String methodDescriptor) {
+      op(0xB6, returnSlots(methodDescriptor) - slots(methodDescriptor) - 1);
+      u2(methodRef(owner, name, methodDescriptor));
+    }
+    void invokespecial(String owner, String name, String methodDescriptor) {
+      op(0xB7, returnSlots(methodDescriptor) - slots(methodDescriptor) - 1);
+      u2(methodRef(owner, name, methodDescriptor));
+    }
+    void invokeinterface(String owner, String name, String methodDescriptor) {
+      int arguments = slots(methodDescriptor) + 1;
+      op(0xB9, returnSlots(methodDescriptor) - arguments);
+      u2(interfaceMethodRef(owner, name, methodDescriptor));
+      u1(arguments);
+      u1(0);
+    }
+    void newObject(String internalName) {
+      op(0xBB, 1);
+      u2(classRef(internalName));
+    }
+    void anewarray(String internalName) {
+      op(0xBD, 0);
+      u2(classRef(internalName));
+    }
+    void checkcast(String internalName) {
+      op(0xC0, 0);
+      u2(classRef(internalName));
+    }
+    void instanceOf(String internalName) {
+      op(0xC1, 0);
+      u2(classRef(internalName));
+    }
+
+    // jumps. offsets are only ever 16 bits here, see write().
+
+    private void jump(int opcode, int stackChange, Label label) {
+      int at = code.size();
+      op(opcode, stackChange);
+      jumps.add(new int[] { at, code.size() });
+      jumpLabels.add(label);
+      u2(0);
+      if (label.stack < 0) label.stack = stack;
+    }
+    void ifeq(Label label) { jump(0x99, -1, label); }
+    void ifne(Label label) { jump(0x9A, -1, label); }
+    void ifAcmpne(Label label) { jump(0xA6, -2, label); }
+    void goTo(Label label) {
+      jump(0xA7, 0, label);
+      stack = 0; // nothing falls through an unconditional jump, until the next label.
+    }
+    /**
+     * Pops an int and jumps to labels[int - low], or to otherwise if it is out of range.
+     */
+    void tableswitch(int low, Label[] labels, Label otherwise) {
+      int at = code.size();
+      op(0xAA, -1);
+      while (code.size() % 4 != 0) u1(0);
+      jumps.add(new int[] { at, -code.size() - 1 }); // negative: a 32 bit offset.
+      jumpLabels.add(otherwise);
+      u4(0);
+      u4(low);
+      u4(low + labels.length - 1);
+      for (Label label : labels) {
+        jumps.add(new int[] { at, -code.size() - 1 });
+        jumpLabels.add(label);
+        u4(0);
+      }
+      otherwise.stack = stack;
+      for (Label label : labels) label.stack = stack;
+      stack = 0;
+    }
+    /**
+     * Catches the exceptions of type internalName thrown by the code from start (inclusive) to end (exclusive),
+     * jumping to handler with just the exception on the stack.
+     */
+    void tryCatch(Label start, Label end, Label handler, String internalName) {
+      handlers.add(new Label[] { start, end, handler });
+      handlerTypes.add(classRef(internalName));
+      handler.stack = 1;
+    }
+    void mark(Label label) {
+      label.position = code.size();
+      if (label.stack >= 0) {
+        stack = label.stack;
+      } else {
+        label.stack = stack;
+      }
+    }
+
+    private void write(DataOutputStream out, int codeName) throws IOException {
+      byte[] bytes = code.toByteArray();
+      if (bytes.length > Short.MAX_VALUE) {
+        throw new TooLarge("Method " + methodName + " is too large.");
+      }
+      for (int i = 0; i < jumps.size(); i++) {
+        int at = jumps.get(i)[0];
+        int offsetAt = jumps.get(i)[1];
+        int offset = jumpLabels.get(i).position - at;
+        if (offsetAt < 0) {
+          offsetAt = -offsetAt - 1;
+          bytes[offsetAt] = (byte)(offset >> 24);
+          bytes[offsetAt + 1] = (byte)(offset >> 16);
+          bytes[offsetAt + 2] = (byte)(offset >> 8);
+          bytes[offsetAt + 3] = (byte)offset;
+        } else {
+          bytes[offsetAt] = (byte)(offset >> 8);
+          bytes[offsetAt + 1] = (byte)offset;
+        }
+      }
+      if (maxLocals > 0xFFFF || maxStack > 0xFFFF) {
+        throw new TooLarge("Method " + methodName + " is too large.");
+      }
+      out.writeShort(access);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+      out.writeShort(1); // just the Code attribute.
+      out.writeShort(codeName);
+      out.writeInt(12 + bytes.length + 8 * handlers.size());
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.writeShort(handlers.size());
+      for (int i = 0; i < handlers.size(); i++) {
+        Label[] handler = handlers.get(i);
+        out.writeShort(handler[0].position);
+        out.writeShort(handler[1].position);
+        out.writeShort(handler[2].position);
+        out.writeShort(handlerTypes.get(i));
+      }
+      out.writeShort(0); // no attributes.
+    }
+  }
+
+  /**
+   * @return How many stack (or local variable) slots the descriptor's value takes up,
+   * or, for a method descriptor, all of its parameters do.
+   */
+  private static int slots(String descriptor) {
+    if (descriptor.charAt(0) != '(') return slotsOf(descriptor.charAt(0));
+    int count = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+      count += slotsOf(c);
+      while (descriptor.charAt(i) == '[') i++;
+      if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+      i++;
+    }
+    return count;
+  }
+  private static int returnSlots(String methodDescriptor) {
+    char returns = methodDescriptor.charAt(methodDescriptor.indexOf(')') + 1);
+    return returns == 'V' ? 0 : slotsOf(returns);
+  }
+  private static int slotsOf(char type) {
+    return (type == 'J' || type == 'D') ? 2 : 1;
+  }
+}
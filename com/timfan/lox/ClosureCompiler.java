@@ -0,0 +1,713 @@
+package com.timfan.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Compiles resolved statements, once, into a tree of Java lambdas that the Interpreter then runs.
+ *
+ * every Expr becomes an Evaluate and every Stmt an Execute, capturing its already compiled children
+ * and anything else the Resolver worked out (slots, depths, which operator it is), so that running it
+ * is just calling down the tree: no visitor double dispatch, no switching on the operator,
+ * and the current Environment is passed down as an argument instead of kept in a field.
+ *
+ * it does exactly what the Interpreter's visit methods do, in the same order,
+ * and throws the same RuntimeErrors.
+ *
+ * arithmetic, comparisons and negations ask their operands for numbers as doubles (see Evaluate.number),
+ * so a number is only boxed in a Double when it is wanted as an Object, e.g. to be put in an array,
+ * or passed to a function. an assignment of arithmetic keeps the number unboxed in its variable.
+ */
+class ClosureCompiler implements Stmt.Visitor<ClosureCompiler.Execute>, Expr.Visitor<ClosureCompiler.Evaluate> {
+  /**
+   * A compiled expression.
+   */
+  interface Evaluate {
+    Object evaluate(Environment environment);
+    /**
+     * Evaluates, for something that expects a number, as a double.
+     * (by default, that is just what evaluate gives, unboxed, but whatever can work out a number
+     * without boxing it first does.)
+     * @throws NotANumber With what evaluate would have given, if it isn't a number.
+     */
+    default double number(Environment environment) {
+      return NotANumber.expect(evaluate(environment));
+    }
+  }
+  /**
+   * What a comparison does once both of its operands are known to be numbers.
+   */
+  private interface Comparison {
+    boolean compare(double left, double right);
+  }
+  /**
+   * A compiled statement, which says how it finished, like the Interpreter's visit methods do.
+   */
+  interface Execute {
+    Completion execute(Environment environment);
+  }
+
+  private final Interpreter interpreter;
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  Execute compile(List<Stmt> statements) {
+    return sequence(compileStmts(statements));
+  }
+  /**
+   * Runs statements in order, until one of them doesn't finish normally.
+   */
+  private static Execute sequence(Execute[] statements) {
+    return environment -> {
+      for (Execute statement : statements) {
+        Completion completion = statement.execute(environment);
+        if (completion != Completion.NORMAL) return completion;
+      }
+      return Completion.NORMAL;
+    };
+  }
+  private Execute[] compileStmts(List<Stmt> statements) {
+    Execute[] compiled = new Execute[statements.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = statements.get(i).accept(this);
+    }
+    return compiled;
+  }
+  private Evaluate[] compileExprs(List<Expr> exprs) {
+    Evaluate[] compiled = new Evaluate[exprs.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = exprs.get(i).accept(this);
+    }
+    return compiled;
+  }
+  private Evaluate compile(Expr expr) {
+    return expr.accept(this);
+  }
+  private static Environment ancestor(Environment environment, int depth) {
+    for (int i = 0; i < depth; i++) {
+      environment = environment.parent;
+    }
+    return environment;
+  }
+  /**
+   * The body of a function, run in a new Environment for the parameters.
+   */
+  private LoxFunction.Body body(Stmt.Function declaration) {
+    Execute body = sequence(compileStmts(declaration.body));
+    int size = declaration.size;
+    Token[] params = new Token[declaration.params.size()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = declaration.params.get(i);
+    }
+    return new LoxFunction.Body() {
+      @Override
+      public Object call(Environment closure, List<Object> arguments) {
+        Environment local = new Environment(closure, size);
+        for (int i = 0; i < params.length; i++) {
+          local.define(params[i], arguments.get(i));
+        }
+        return run(local);
+      }
+      @Override
+      public Object call0(Environment closure) {
+        return run(new Environment(closure, size));
+      }
+      @Override
+      public Object call1(Environment closure, Object a) {
+        Environment local = new Environment(closure, size);
+        local.define(params[0], a);
+        return run(local);
+      }
+      @Override
+      public Object call2(Environment closure, Object a, Object b) {
+        Environment local = new Environment(closure, size);
+        local.define(params[0], a);
+        local.define(params[1], b);
+        return run(local);
+      }
+      @Override
+      public Object call3(Environment closure, Object a, Object b, Object c) {
+        Environment local = new Environment(closure, size);
+        local.define(params[0], a);
+        local.define(params[1], b);
+        local.define(params[2], c);
+        return run(local);
+      }
+      private Object run(Environment local) {
+        Completion completion = body.execute(local);
+        return completion.kind == Completion.Kind.TAIL_CALL ? completion : completion.value;
+      }
+    };
+  }
+
+  @Override
+  public Execute visitExpressionStmt(Stmt.Expression stmt) {
+    Evaluate expression = compile(stmt.expression);
+    if (stmt.expression instanceof Expr.Assign && isArithmetic(((Expr.Assign)stmt.expression).value)) {
+      // (e.g. i = i + 1, whose value isn't used, so never needs boxing.)
+      return environment -> {
+        try {
+          expression.number(environment);
+        } catch (NotANumber unused) {
+          // it has been assigned all the same.
+        }
+        return Completion.NORMAL;
+      };
+    }
+    return environment -> {
+      expression.evaluate(environment);
+      return Completion.NORMAL;
+    };
+  }
+  @Override
+  public Execute visitFunctionStmt(Stmt.Function stmt) {
+    LoxFunction.Body body = body(stmt);
+    Token identifier = stmt.identifier;
+    return environment -> {
+      environment.define(identifier, new LoxFunction(stmt, environment, body));
+      return Completion.NORMAL;
+    };
+  }
+  @Override
+  public Execute visitPrintStmt(Stmt.Print stmt) {
+    Evaluate expression = compile(stmt.expression);
+    return environment -> {
+      System.out.println(Operators.stringify(expression.evaluate(environment)));
+      return Completion.NORMAL;
+    };
+  }
+  @Override
+  public Execute visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    Token identifier = stmt.identifier;
+    if (stmt.initialiser == null) {
+      return environment -> {
+        environment.define(identifier, null);
+        return Completion.NORMAL;
+      };
+    }
+    Evaluate initialiser = compile(stmt.initialiser);
+    return environment -> {
+      environment.define(identifier, initialiser.evaluate(environment));
+      return Completion.NORMAL;
+    };
+  }
+  @Override
+  public Execute visitBlockStmt(Stmt.Block stmt) {
+    Execute statements = sequence(compileStmts(stmt.statements));
+    int size = stmt.size;
+    return environment -> statements.execute(new Environment(environment, size));
+  }
+  @Override
+  public Execute visitIfStmt(Stmt.If stmt) {
+    Evaluate condition = compile(stmt.condition);
+    Execute thenStmt = stmt.thenStmt.accept(this);
+    if (stmt.elseStmt == null) {
+      return environment -> {
+        if (Operators.isTruthy(condition.evaluate(environment))) return thenStmt.execute(environment);
+        return Completion.NORMAL;
+      };
+    }
+    Execute elseStmt = stmt.elseStmt.accept(this);
+    return environment -> {
+      if (Operators.isTruthy(condition.evaluate(environment))) {
+        return thenStmt.execute(environment);
+      } else {
+        return elseStmt.execute(environment);
+      }
+    };
+  }
+  @Override
+  public Execute visitWhileStmt(Stmt.While stmt) {
+    Evaluate condition = compile(stmt.condition);
+    Execute body = stmt.body.accept(this);
+    return environment -> {
+      while (Operators.isTruthy(condition.evaluate(environment))) {
+        Completion completion = body.execute(environment);
+        if (completion == Completion.BREAK) break;
+        if (completion.returns()) return completion;
+      }
+      return Completion.NORMAL;
+    };
+  }
+  @Override
+  public Execute visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return environment -> Completion.returning(null);
+    }
+    if (stmt.tailCall) {
+      // as in the Interpreter, the call to a Lox function is left for LoxFunction.call to make.
+      Expr.Call call = (Expr.Call)stmt.value;
+      Evaluate callee = compile(call.callee);
+      Evaluate[] arguments = compileExprs(call.arguments);
+      CallCache cache = CallCache.of(call);
+      return environment -> {
+        Object function = callee.evaluate(environment);
+        Object[] values = evaluate(arguments, environment);
+        LoxCallable callable = cache.check(function, values.length);
+        if (callable instanceof LoxFunction) return Completion.tailCall((LoxFunction)callable, Arrays.asList(values));
+        return Completion.returning(callable.call(interpreter, Arrays.asList(values)));
+      };
+    }
+    Evaluate value = compile(stmt.value);
+    return environment -> Completion.returning(value.evaluate(environment));
+  }
+  @Override
+  public Execute visitBreakStmt(Stmt.Break stmt) {
+    return environment -> Completion.BREAK;
+  }
+  @Override
+  public Execute visitContinueStmt(Stmt.Continue stmt) {
+    return environment -> Completion.CONTINUE;
+  }
+
+  @Override
+  public Evaluate visitBinaryExpr(Expr.Binary expr) {
+    Evaluate left = compile(expr.left);
+    Evaluate right = compile(expr.right);
+    Token operator = expr.operator;
+    switch (operator.type) {
+      case TokenType.PLUS:          return arithmetic(operator, left, right, (a, b) -> a + b);
+      case TokenType.MINUS:         return arithmetic(operator, left, right, (a, b) -> a - b);
+      case TokenType.STAR:          return arithmetic(operator, left, right, (a, b) -> a * b);
+      case TokenType.SLASH:         return arithmetic(operator, left, right, (a, b) -> a / b);
+      case TokenType.LESS:          return comparison(operator, left, right, (a, b) -> a < b);
+      case TokenType.GREATER:       return comparison(operator, left, right, (a, b) -> a > b);
+      case TokenType.LESS_EQUAL:    return comparison(operator, left, right, (a, b) -> a <= b);
+      case TokenType.GREATER_EQUAL: return comparison(operator, left, right, (a, b) -> a >= b);
+      case TokenType.EQUAL_EQUAL:   return comparison(operator, left, right, (a, b) -> a == b);
+      case TokenType.BANG_EQUAL:    return comparison(operator, left, right, (a, b) -> a != b);
+      default:
+        throw new AssertionError("Unknown binary operator " + operator.lexeme);
+    }
+  }
+  /**
+   * An arithmetic operator, which works out its operands as doubles, and so only boxes its result
+   * if it is wanted as an Object.
+   *
+   * only + can be given anything other than numbers without that being an error (strings and arrays),
+   * and the first time it is, it stops expecting numbers and hands its operands to Operators from then on.
+   */
+  private static Evaluate arithmetic(Token operator, Evaluate left, Evaluate right, DoubleBinaryOperator numbers) {
+    return new Evaluate() {
+      private boolean generic = false;
+      @Override
+      public Object evaluate(Environment environment) {
+        if (generic) return Operators.binary(operator, left.evaluate(environment), right.evaluate(environment));
+        try {
+          return number(environment);
+        } catch (NotANumber notANumber) {
+          return notANumber.value;
+        }
+      }
+      @Override
+      public double number(Environment environment) {
+        if (generic) return NotANumber.expect(evaluate(environment));
+        // left is still evaluated before right.
+        double leftNumber;
+        try {
+          leftNumber = left.number(environment);
+        } catch (NotANumber notANumber) {
+          generic = true;
+          throw new NotANumber(Operators.binary(operator, notANumber.value, right.evaluate(environment)));
+        }
+        double rightNumber;
+        try {
+          rightNumber = right.number(environment);
+        } catch (NotANumber notANumber) {
+          generic = true;
+          throw new NotANumber(Operators.binary(operator, leftNumber, notANumber.value));
+        }
+        return numbers.applyAsDouble(leftNumber, rightNumber);
+      }
+    };
+  }
+  /**
+   * A comparison, which works out its operands as doubles. (anything other than a number
+   * is an error, which is left for Operators to throw.)
+   */
+  private static Evaluate comparison(Token operator, Evaluate left, Evaluate right, Comparison numbers) {
+    return environment -> {
+      double leftNumber;
+      try {
+        leftNumber = left.number(environment);
+      } catch (NotANumber notANumber) {
+        return Operators.binary(operator, notANumber.value, right.evaluate(environment));
+      }
+      double rightNumber;
+      try {
+        rightNumber = right.number(environment);
+      } catch (NotANumber notANumber) {
+        return Operators.binary(operator, leftNumber, notANumber.value);
+      }
+      return numbers.compare(leftNumber, rightNumber);
+    };
+  }
+  /**
+   * @return Whether expr is arithmetic, which can be worked out without boxing (see arithmetic).
+   */
+  private static boolean isArithmetic(Expr expr) {
+    if (expr instanceof Expr.Grouping) return isArithmetic(((Expr.Grouping)expr).expression);
+    if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+    if (!(expr instanceof Expr.Binary)) return false;
+    TokenType type = ((Expr.Binary)expr).operator.type;
+    return type == TokenType.PLUS || type == TokenType.MINUS || type == TokenType.STAR || type == TokenType.SLASH;
+  }
+  @Override
+  public Evaluate visitCallExpr(Expr.Call expr) {
+    Evaluate callee = compile(expr.callee);
+    Evaluate[] arguments = compileExprs(expr.arguments);
+    CallCache cache = CallCache.of(expr);
+    if (expr.inlined != null) return inline(expr, callee, arguments);
+    // a call with up to 3 arguments passes them straight on, rather than in a List (see LoxCallable).
+    switch (arguments.length) {
+      case 0:
+        return environment -> {
+          LoxCallable callable = cache.check(callee.evaluate(environment), 0);
+          try {
+            return callable.call0(interpreter);
+          } catch (StackOverflowError error) {
+            throw stackOverflow(cache);
+          }
+        };
+      case 1: {
+        Evaluate a = arguments[0];
+        return environment -> {
+          Object function = callee.evaluate(environment);
+          Object first = a.evaluate(environment);
+          LoxCallable callable = cache.check(function, 1);
+          try {
+            return callable.call1(interpreter, first);
+          } catch (StackOverflowError error) {
+            throw stackOverflow(cache);
+          }
+        };
+      }
+      case 2: {
+        Evaluate a = arguments[0];
+        Evaluate b = arguments[1];
+        return environment -> {
+          Object function = callee.evaluate(environment);
+          Object first = a.evaluate(environment);
+          Object second = b.evaluate(environment);
+          LoxCallable callable = cache.check(function, 2);
+          try {
+            return callable.call2(interpreter, first, second);
+          } catch (StackOverflowError error) {
+            throw stackOverflow(cache);
+          }
+        };
+      }
+      case 3: {
+        Evaluate a = arguments[0];
+        Evaluate b = arguments[1];
+        Evaluate c = arguments[2];
+        return environment -> {
+          Object function = callee.evaluate(environment);
+          Object first = a.evaluate(environment);
+          Object second = b.evaluate(environment);
+          Object third = c.evaluate(environment);
+          LoxCallable callable = cache.check(function, 3);
+          try {
+            return callable.call3(interpreter, first, second, third);
+          } catch (StackOverflowError error) {
+            throw stackOverflow(cache);
+          }
+        };
+      }
+      default:
+        return environment -> {
+          Object function = callee.evaluate(environment);
+          return call(cache, function, evaluate(arguments, environment));
+        };
+    }
+  }
+  /**
+   * A call the Inliner has marked, which evaluates the function's returned expression in place,
+   * as the Interpreter does, if the callee turns out to be the marked function.
+   */
+  private Evaluate inline(Expr.Call expr, Evaluate callee, Evaluate[] arguments) {
+    Stmt.Function declaration = expr.inlined;
+    Evaluate returned = compile(Inliner.returned(declaration));
+    int size = declaration.size;
+    Token[] params = new Token[declaration.params.size()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = declaration.params.get(i);
+    }
+    CallCache cache = CallCache.of(expr);
+    return environment -> {
+      Object function = callee.evaluate(environment);
+      if (function instanceof LoxFunction && ((LoxFunction)function).declaration == declaration) {
+        Environment local = new Environment(((LoxFunction)function).closure, size);
+        for (int i = 0; i < params.length; i++) {
+          local.define(params[i], arguments[i].evaluate(environment));
+        }
+        return returned.evaluate(local);
+      }
+      return call(cache, function, evaluate(arguments, environment));
+    };
+  }
+  private Object call(CallCache cache, Object function, Object[] arguments) {
+    LoxCallable callable = cache.check(function, arguments.length);
+    try {
+      return callable.call(interpreter, Arrays.asList(arguments));
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache);
+    }
+  }
+  private static RuntimeError stackOverflow(CallCache cache) {
+    // as in the Interpreter, too much recursion is a Lox runtime error.
+    return new RuntimeError(cache.paren(), "Stack overflow.");
+  }
+  private static Object[] evaluate(Evaluate[] arguments, Environment environment) {
+    Object[] values = new Object[arguments.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = arguments[i].evaluate(environment);
+    }
+    return values;
+  }
+  @Override
+  public Evaluate visitGroupingExpr(Expr.Grouping expr) {
+    // a grouping does nothing at runtime, so it doesn't need a node of its own.
+    return compile(expr.expression);
+  }
+  @Override
+  public Evaluate visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    if (value instanceof Double) {
+      double number = (double)value;
+      return new Evaluate() {
+        @Override
+        public Object evaluate(Environment environment) {
+          return value;
+        }
+        @Override
+        public double number(Environment environment) {
+          return number;
+        }
+      };
+    }
+    return environment -> value;
+  }
+  @Override
+  public Evaluate visitUnaryExpr(Expr.Unary expr) {
+    Evaluate right = compile(expr.right);
+    Token operator = expr.operator;
+    if (operator.type == TokenType.MINUS) {
+      return new Evaluate() {
+        @Override
+        public Object evaluate(Environment environment) {
+          return number(environment);
+        }
+        @Override
+        public double number(Environment environment) {
+          try {
+            return -right.number(environment);
+          } catch (NotANumber notANumber) {
+            // (which is an error.)
+            return (double)Operators.negate(operator, notANumber.value);
+          }
+        }
+      };
+    }
+    return environment -> Operators.not(right.evaluate(environment));
+  }
+  @Override
+  public Evaluate visitVariableExpr(Expr.Variable expr) {
+    Token identifier = expr.identifier;
+    int slot = expr.slot;
+    int depth = expr.depth;
+    switch (depth) {
+      case Resolver.GLOBAL:
+        Environment.Global global = interpreter.globals.global(identifier.symbol);
+        return new Evaluate() {
+          @Override
+          public Object evaluate(Environment environment) {
+            return global.get(identifier);
+          }
+          @Override
+          public double number(Environment environment) {
+            return global.number(identifier);
+          }
+        };
+      case 0:
+        return new Evaluate() {
+          @Override
+          public Object evaluate(Environment environment) {
+            return environment.getAt(slot);
+          }
+          @Override
+          public double number(Environment environment) {
+            return environment.numberAt(slot);
+          }
+        };
+      case 1:
+        return new Evaluate() {
+          @Override
+          public Object evaluate(Environment environment) {
+            return environment.parent.getAt(slot);
+          }
+          @Override
+          public double number(Environment environment) {
+            return environment.parent.numberAt(slot);
+          }
+        };
+      default:
+        return new Evaluate() {
+          @Override
+          public Object evaluate(Environment environment) {
+            return ancestor(environment, depth).getAt(slot);
+          }
+          @Override
+          public double number(Environment environment) {
+            return ancestor(environment, depth).numberAt(slot);
+          }
+        };
+    }
+  }
+  @Override
+  public Evaluate visitAssignExpr(Expr.Assign expr) {
+    Token identifier = expr.identifier;
+    Evaluate value = compile(expr.value);
+    int slot = expr.slot;
+    int depth = expr.depth;
+    Environment.Global global = depth == Resolver.GLOBAL ? interpreter.globals.global(identifier.symbol) : null;
+    Evaluate assign = environment -> {
+      Object result = value.evaluate(environment);
+      if (global != null) {
+        global.assign(identifier, result);
+      } else {
+        ancestor(environment, depth).assignAt(slot, result);
+      }
+      return result;
+    };
+    if (!isArithmetic(expr.value)) return assign;
+    // an assignment of arithmetic, whose number is kept unboxed in the variable, unless it is wanted as an Object.
+    return new Evaluate() {
+      @Override
+      public Object evaluate(Environment environment) {
+        return assign.evaluate(environment);
+      }
+      @Override
+      public double number(Environment environment) {
+        double result;
+        try {
+          result = value.number(environment);
+        } catch (NotANumber notANumber) {
+          if (global != null) {
+            global.assign(identifier, notANumber.value);
+          } else {
+            ancestor(environment, depth).assignAt(slot, notANumber.value);
+          }
+          throw notANumber;
+        }
+        if (global != null) {
+          global.assignNumber(identifier, result);
+        } else {
+          ancestor(environment, depth).assignNumberAt(slot, result);
+        }
+        return result;
+      }
+    };
+  }
+  @Override
+  public Evaluate visitLogicExpr(Expr.Logic expr) {
+    Evaluate left = compile(expr.left);
+    Evaluate right = compile(expr.right);
+    if (expr.operator.type == TokenType.AND) {
+      return environment -> {
+        if (!Operators.isTruthy(left.evaluate(environment))) return Boolean.FALSE;
+        return Operators.isTruthy(right.evaluate(environment));
+      };
+    }
+    return environment -> {
+      if (Operators.isTruthy(left.evaluate(environment))) return Boolean.TRUE;
+      return Operators.isTruthy(right.evaluate(environment));
+    };
+  }
+  @Override
+  public Evaluate visitArrayExpr(Expr.Array expr) {
+    Evaluate[] values = compileExprs(expr.values);
+    return environment -> {
+      List<Object> list = new ArrayList<>(values.length);
+      for (Evaluate value : values) {
+        list.add(value.evaluate(environment));
+      }
+      return new LoxArray(list);
+    };
+  }
+  @Override
+  public Evaluate visitSubscriptExpr(Expr.Subscript expr) {
+    Evaluate subscriptee = compile(expr.subscriptee);
+    Evaluate index = compile(expr.index);
+    Token bracket = expr.bracket;
+    return new Evaluate() {
+      @Override
+      public Object evaluate(Environment environment) {
+        Object subscripteeValue = subscriptee.evaluate(environment);
+        Operators.checkSubscriptable(bracket, subscripteeValue);
+        return Operators.getSubscript(bracket, subscripteeValue, index.evaluate(environment));
+      }
+      @Override
+      public double number(Environment environment) {
+        Object subscripteeValue = subscriptee.evaluate(environment);
+        Operators.checkSubscriptable(bracket, subscripteeValue);
+        if (!(subscripteeValue instanceof LoxArray) || !((LoxArray)subscripteeValue).isNumbers()) {
+          return NotANumber.expect(Operators.getSubscript(bracket, subscripteeValue, index.evaluate(environment)));
+        }
+        double indexNumber;
+        try {
+          indexNumber = index.number(environment);
+        } catch (NotANumber notANumber) {
+          // (which is an error, as the index isn't a number.)
+          return NotANumber.expect(Operators.getSubscript(bracket, subscripteeValue, notANumber.value));
+        }
+        return Operators.getNumberSubscript(bracket, (LoxArray)subscripteeValue, indexNumber);
+      }
+    };
+  }
+  @Override
+  public Evaluate visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    Evaluate subscriptee = compile(expr.subscriptee);
+    Evaluate index = compile(expr.index);
+    Evaluate value = compile(expr.value);
+    Token bracket = expr.bracket;
+    return environment -> {
+      Object subscripteeValue = subscriptee.evaluate(environment);
+      Operators.checkSubscriptable(bracket, subscripteeValue);
+      Object indexValue = index.evaluate(environment);
+      Operators.checkSubscriptIndex(bracket, subscripteeValue, indexValue);
+      return Operators.setSubscript(bracket, subscripteeValue, indexValue, value.evaluate(environment));
+    };
+  }
+  @Override
+  public Evaluate visitLambdaExpr(Expr.Lambda expr) {
+    Stmt.Function declaration = expr.function;
+    LoxFunction.Body body = body(declaration);
+    return environment -> new LoxFunction(declaration, environment, body);
+  }
+  @Override
+  public Evaluate visitDictionaryExpr(Expr.Dictionary expr) {
+    Evaluate[] keysAndValues = compileExprs(expr.dictionary);
+    return environment -> {
+      LoxDictionary dictionary = new LoxDictionary();
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        Object key = keysAndValues[i].evaluate(environment);
+        Object value = keysAndValues[i + 1].evaluate(environment);
+        dictionary.put(key, value);
+      }
+      return dictionary;
+    };
+  }
+  @Override
+  public Evaluate visitInvariantExpr(Expr.Invariant expr) {
+    Evaluate cache = compile(expr.cache);
+    Evaluate store = compile(expr.store);
+    return environment -> {
+      Object value = cache.evaluate(environment);
+      return value != null ? value : store.evaluate(environment);
+    };
+  }
+}
@@ -0,0 +1,208 @@
+package com.timfan.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What every class generated by JvmCompiler extends.
+ *
+ * each unit (a script, or a line of the REPL) is compiled into one hidden class,
+ * with one static method per function in it. the generated code calls back into the
+ * helpers here for anything that isn't worth spelling out in bytecode,
+ * and the helpers do the same checks (and throw the same RuntimeErrors) as the Interpreter.
+ */
+abstract class CompiledUnit {
+  final Interpreter interpreter; // what the natives are given, when compiled code calls them.
+  final Environment globals;
+  private final LoxFunction.Body[] bodies; // a LoxFunction's way into each function's method.
+  CompiledUnit(Interpreter interpreter, int functions) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+    bodies = new LoxFunction.Body[functions];
+    for (int i = 0; i < functions; i++) {
+      int function = i;
+      bodies[i] = new LoxFunction.Body() {
+        @Override
+        public Object call(Environment closure, List<Object> arguments) {
+          return invoke(function, closure, arguments);
+        }
+        @Override
+        public Object call0(Environment closure) {
+          return invoke0(function, closure);
+        }
+        @Override
+        public Object call1(Environment closure, Object a) {
+          return invoke1(function, closure, a);
+        }
+        @Override
+        public Object call2(Environment closure, Object a, Object b) {
+          return invoke2(function, closure, a, b);
+        }
+        @Override
+        public Object call3(Environment closure, Object a, Object b, Object c) {
+          return invoke3(function, closure, a, b, c);
+        }
+      };
+    }
+  }
+  /**
+   * Runs the compiled method of the given function (function 0 is the unit's top-level code).
+   * LoxFunction.call comes through here (see bodies), so that the function can be called from anywhere.
+   */
+  abstract Object invoke(int function, Environment closure, List<Object> arguments);
+  // the same, for a function that takes 0 to 3 arguments, which are passed straight on to its method.
+  abstract Object invoke0(int function, Environment closure);
+  abstract Object invoke1(int function, Environment closure, Object a);
+  abstract Object invoke2(int function, Environment closure, Object a, Object b);
+  abstract Object invoke3(int function, Environment closure, Object a, Object b, Object c);
+
+  Object call(Object callee, Object[] arguments, CallCache cache) {
+    LoxCallable callable = cache.check(callee, arguments.length);
+    try {
+      return callable.call(interpreter, Arrays.asList(arguments));
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache.paren());
+    }
+  }
+  // the same, for a call with 0 to 3 arguments, which don't need an array (see LoxCallable).
+  Object call0(Object callee, CallCache cache) {
+    LoxCallable callable = cache.check(callee, 0);
+    try {
+      return callable.call0(interpreter);
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache.paren());
+    }
+  }
+  Object call1(Object callee, Object a, CallCache cache) {
+    LoxCallable callable = cache.check(callee, 1);
+    try {
+      return callable.call1(interpreter, a);
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache.paren());
+    }
+  }
+  Object call2(Object callee, Object a, Object b, CallCache cache) {
+    LoxCallable callable = cache.check(callee, 2);
+    try {
+      return callable.call2(interpreter, a, b);
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache.paren());
+    }
+  }
+  Object call3(Object callee, Object a, Object b, Object c, CallCache cache) {
+    LoxCallable callable = cache.check(callee, 3);
+    try {
+      return callable.call3(interpreter, a, b, c);
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache.paren());
+    }
+  }
+  /**
+   * A call that a function returns the result of: a LoxFunction is left for whoever called the function
+   * to call, in a loop (see LoxFunction.finish), so that tail calls don't take up any more of the Java stack.
+   * anything else is called straight away.
+   */
+  Object tailCall(Object callee, Object[] arguments, CallCache cache) {
+    LoxCallable callable = cache.check(callee, arguments.length);
+    if (callable instanceof LoxFunction) return Completion.tailCall((LoxFunction)callable, Arrays.asList(arguments));
+    try {
+      return callable.call(interpreter, Arrays.asList(arguments));
+    } catch (StackOverflowError error) {
+      throw stackOverflow(cache.paren());
+    }
+  }
+  /**
+   * @return result, the result of a call straight to a function's method, once the tail call it might be has been made.
+   */
+  Object finish(Object result) {
+    return LoxFunction.finish(interpreter, result);
+  }
+  /**
+   * as in the Interpreter, too much recursion is a Lox runtime error, blamed on the innermost call that can.
+   * (a call straight to a function's method catches its StackOverflowError in the generated code, and comes here too.)
+   */
+  static RuntimeError stackOverflow(Token paren) {
+    return new RuntimeError(paren, "Stack overflow.");
+  }
+  LoxFunction function(Stmt.Function declaration, Environment closure, int index) {
+    return new LoxFunction(declaration, closure, bodies[index]);
+  }
+  void defineGlobal(Object value, Token identifier) {
+    globals.define(identifier, value);
+  }
+
+  // the operators, with the common case of two numbers done here,
+  // small enough for the JIT to inline into the generated code.
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+    return Operators.add(operator, left, right);
+  }
+  static Object subtract(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left - (double)right;
+    return Operators.subtract(operator, left, right);
+  }
+  static Object multiply(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left * (double)right;
+    return Operators.multiply(operator, left, right);
+  }
+  static Object divide(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left / (double)right;
+    return Operators.divide(operator, left, right);
+  }
+  // comparisons give the boolean that a branch tests, which is boxed only when used as a Lox value.
+  static boolean isLess(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left < (double)right;
+    return (Boolean)Operators.less(operator, left, right);
+  }
+  static boolean isGreater(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left > (double)right;
+    return (Boolean)Operators.greater(operator, left, right);
+  }
+  static boolean isLessEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left <= (double)right;
+    return (Boolean)Operators.lessEqual(operator, left, right);
+  }
+  static boolean isGreaterEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left >= (double)right;
+    return (Boolean)Operators.greaterEqual(operator, left, right);
+  }
+  static boolean isEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left == (double)right;
+    return (Boolean)Operators.equal(operator, left, right);
+  }
+  static boolean isNotEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) return (double)left != (double)right;
+    return (Boolean)Operators.notEqual(operator, left, right);
+  }
+  static Object negate(Object value, Token operator) {
+    return Operators.negate(operator, value);
+  }
+  static Object checkSubscriptable(Object subscriptee, Token bracket) {
+    Operators.checkSubscriptable(bracket, subscriptee);
+    return subscriptee;
+  }
+  static Object getSubscript(Object subscriptee, Object index, Token bracket) {
+    return Operators.getSubscript(bracket, subscriptee, index);
+  }
+  static void checkSubscriptIndex(Object subscriptee, Object index, Token bracket) {
+    Operators.checkSubscriptIndex(bracket, subscriptee, index);
+  }
+  static Object setSubscript(Object subscriptee, Object index, Object value, Token bracket) {
+    return Operators.setSubscript(bracket, subscriptee, index, value);
+  }
+  static Object array(Object[] values) {
+    return new LoxArray(new ArrayList<>(Arrays.asList(values)));
+  }
+  static Object dictionary(Object[] keysAndValues) {
+    LoxDictionary dictionary = new LoxDictionary();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      dictionary.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return dictionary;
+  }
+  static void print(Object value) {
+    System.out.println(Operators.stringify(value));
+  }
+}
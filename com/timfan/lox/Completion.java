@@ -0,0 +1,46 @@
+package com.timfan.lox;
+
+import java.util.List;
+
+/**
+ * How a statement finished running: normally, or by a break, a continue, or a return
+ * (which might be a tail call, the return of a call that LoxFunction.call is still to make).
+ *
+ * executing a statement gives back its Completion, rather than throwing one as an exception,
+ * and whatever is running that statement checks which one it got: a loop stops at a BREAK,
+ * a block hands anything but NORMAL straight up to whatever is running it, and
+ * a function call takes the value out of a RETURN.
+ */
+final class Completion {
+  enum Kind { NORMAL, BREAK, CONTINUE, RETURN, TAIL_CALL }
+  static final Completion NORMAL = new Completion(Kind.NORMAL, null);
+  static final Completion BREAK = new Completion(Kind.BREAK, null);
+  static final Completion CONTINUE = new Completion(Kind.CONTINUE, null);
+  private static final Completion RETURN_NIL = new Completion(Kind.RETURN, null);
+
+  final Kind kind;
+  final Object value; // only for a RETURN, the returned value.
+  final LoxFunction callee; // only for a TAIL_CALL, the function to call next, and what to call it with.
+  final List<Object> arguments;
+  private Completion(Kind kind, Object value) {
+    this(kind, value, null, null);
+  }
+  private Completion(Kind kind, Object value, LoxFunction callee, List<Object> arguments) {
+    this.kind = kind;
+    this.value = value;
+    this.callee = callee;
+    this.arguments = arguments;
+  }
+  static Completion returning(Object value) {
+    return value == null ? RETURN_NIL : new Completion(Kind.RETURN, value);
+  }
+  static Completion tailCall(LoxFunction callee, List<Object> arguments) {
+    return new Completion(Kind.TAIL_CALL, null, callee, arguments);
+  }
+  /**
+   * @return Whether this leaves the function it is in, which a loop or block has to pass on.
+   */
+  boolean returns() {
+    return kind == Kind.RETURN || kind == Kind.TAIL_CALL;
+  }
+}
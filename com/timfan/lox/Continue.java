@@ -1,7 +0,0 @@
-package com.timfan.lox;
-
-class Continue extends RuntimeException {
-  Continue() {
-    super(null, null, false, false);
-  } 
-}
@@ -1,63 +1,176 @@
 package com.timfan.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * Contains a hashmap of declarations and their associated values.
+ * Contains the declarations and their associated values.
  * The interpreter will have its own singular global environment accessible by all statements,
  * and then each code block, like the if-then-else code blocks, the function code blocks, etc.,
  * will have their own environments, environments only accessible to 
  * statements within those code blocks.
+ *
+ * the global environment is an array indexed by the id Symbols gave the declaration's name (see Token.symbol),
+ * grown as names are, since globals can be declared (and re-declared) at any time, e.g. line by line
+ * in the REPL, so finding a global never hashes its name. every local environment
+ * is a plain array of slots, sized exactly to how many declarations the Resolver found in that scope,
+ * and the Resolver tells the interpreter which slot each local variable reference should use.
+ *
+ * each global gets its own Global, made the first time its name is defined or asked for by
+ * JvmCompiler, and kept from then on. compiled code holds on to the Global itself rather than
+ * looking up the name on every use.
+ *
+ * a number assigned by assignNumberAt (or a Global's assignNumber) is kept as a double, with NUMBER
+ * in its slot, so that a variable like a loop counter can be changed over and over without a new Double
+ * each time. it is only boxed when something asks for it as an Object, and that Double is then kept
+ * in its slot, so it is boxed at most once for each assignment.
  */
-class Environment {
+public class Environment {
   final Environment parent;
-  private final Map<String, Object> values = new HashMap<>();
+  private Global[] values; // only for the global environment, indexed by symbol.
+  private final Object[] slots; // only for local environments.
+  private double[] numbers = null; // for the slots that are NUMBER, made the first time one is.
+  private int defined = 0; // how many of the slots have been defined so far.
+  private static final Object NUMBER = new Object(); // in place of a number kept unboxed.
+  /**
+   * A global variable, which stays undefined until its first definition.
+   */
+  static final class Global {
+    private Object value = null;
+    private double number = 0; // the value, when it is NUMBER.
+    private boolean defined = false;
+    Object get(Token identifier) {
+      if (defined) return value();
+      throw new RuntimeError(identifier, "Undefined variable '" + identifier.lexeme + "'.");
+    }
+    void assign(Token identifier, Object value) {
+      if (!defined) {
+        throw new RuntimeError(identifier, "Undefined variable '" + identifier.lexeme + "'.");
+      }
+      this.value = value;
+    }
+    void assignNumber(Token identifier, double number) {
+      if (!defined) {
+        throw new RuntimeError(identifier, "Undefined variable '" + identifier.lexeme + "'.");
+      }
+      this.value = NUMBER;
+      this.number = number;
+    }
+    /**
+     * @return The value, as a double.
+     * @throws NotANumber If it isn't a number.
+     */
+    double number(Token identifier) {
+      if (value == NUMBER) return number;
+      return NotANumber.expect(get(identifier));
+    }
+    /**
+     * @return The value, or null if it is undefined, for when there's no token to blame.
+     */
+    Object value() {
+      if (value == NUMBER) value = number;
+      return value;
+    }
+  }
   Environment() {
     // the global variable environment.
     parent = null;
+    values = new Global[64];
+    slots = null;
   }
-  Environment(Environment parent) {
+  Environment(Environment parent, int size) {
     // walking up the chain of parent environments will reach the global variable environment.
     this.parent = parent;
+    values = null;
+    slots = new Object[size];
   }
-  void define(String name, Object value) {
-    values.put(name, value);
+  /**
+   * a local environment's declarations are executed in the same order as the Resolver
+   * numbered them, so the next declaration always goes into the next free slot.
+   */
+  public void define(Token identifier, Object value) {
+    define(identifier.symbol, value);
   }
   /**
-   * Assign identifier.lexeme to be mapped to value in this environment,
-   * only if identifier.lexeme has been defined in this environment before already.
+   * For the natives, which have no token to hand.
    */
-  void assign(Token identifier, Object value) {
-    String name = identifier.lexeme;
-    if (values.containsKey(name)) {
-      values.put(name, value);
-      return;
+  public void define(String name, Object value) {
+    define(Symbols.intern(name), value);
+  }
+  private void define(int symbol, Object value) {
+    if (slots != null) {
+      slots[defined++] = value;
+    } else {
+      Global global = global(symbol);
+      global.value = value;
+      global.defined = true;
     }
-    // this environment doesn't have this identifier. check the parent environment, 
-    if (parent != null) {
-      // recursively walking up the chain trying each parent environment, until we reach the global environment.
-      parent.assign(identifier, value);
-    } else /* if parent is null */ {
-      // we are in the global variable environment and still haven't found.
-      throw new RuntimeError(identifier, "Undefined variable '" + name + "'.");
+  }
+  /**
+   * @return The global environment's Global for name, whether or not it has been defined yet.
+   */
+  Global global(String name) {
+    return global(Symbols.intern(name));
+  }
+  /**
+   * @return The global environment's Global for the name whose id is symbol, whether or not it has been defined yet.
+   */
+  Global global(int symbol) {
+    if (symbol >= values.length) values = Arrays.copyOf(values, Math.max(2 * values.length, symbol + 1));
+    Global global = values[symbol];
+    if (global == null) {
+      global = new Global();
+      values[symbol] = global;
+    }
+    return global;
+  }
+  Object getAt(int slot) {
+    Object value = slots[slot];
+    if (value == NUMBER) {
+      value = numbers[slot];
+      slots[slot] = value;
     }
+    return value;
+  }
+  void assignAt(int slot, Object value) {
+    slots[slot] = value;
+  }
+  /**
+   * @return The value at slot, as a double.
+   * @throws NotANumber If it isn't a number.
+   */
+  double numberAt(int slot) {
+    Object value = slots[slot];
+    if (value == NUMBER) return numbers[slot];
+    return NotANumber.expect(value);
+  }
+  void assignNumberAt(int slot, double number) {
+    if (numbers == null) numbers = new double[slots.length];
+    numbers[slot] = number;
+    slots[slot] = NUMBER;
+  }
+  /**
+   * Assign identifier to be mapped to value in the global environment,
+   * only if identifier has been defined in the global environment before already.
+   */
+  public void assign(Token identifier, Object value) {
+    global(identifier).assign(identifier, value);
   }
   /**
    * @throws RuntimeError If is undefined variable.
    */
-  Object get(Token identifier) {
-    String name = identifier.lexeme;
-    if (values.containsKey(name)) {
-      return values.get(name);
-    }
-    // this environment doesn't have this identifier. check the parent environment, 
-    if (parent != null) {
-      // recursively walking up the chain trying each parent environment, until we reach the global environment.
-      return parent.get(identifier);
-    } else /* if parent is null */ {
-      // we are in the global variable environment and still haven't found.
-      throw new RuntimeError(identifier, "Undefined variable '" + name + "'.");
+  public Object get(Token identifier) {
+    return global(identifier).get(identifier);
+  }
+  /**
+   * @return The global environment's Global for identifier.
+   * @throws RuntimeError If it has never been defined.
+   */
+  Global global(Token identifier) {
+    int symbol = identifier.symbol;
+    Global global = symbol < values.length ? values[symbol] : null;
+    if (global == null) {
+      throw new RuntimeError(identifier, "Undefined variable '" + identifier.lexeme + "'.");
     }
+    return global;
   }
 }
@@ -1,7 +1,7 @@
 package com.timfan.lox;
 
 import java.util.List;
-abstract class Expr {
+public abstract class Expr {
   /**
    * the client offers the customer the whole menu,
    * and asks the customer to choose what they want from that menu.
@@ -26,7 +26,7 @@ abstract class Expr {
    *    }
    *  }
    */
-  interface Visitor<R> {
+  public interface Visitor<R> {
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
     R visitGroupingExpr(Grouping expr);
@@ -40,162 +40,183 @@ abstract class Expr {
     R visitSubscriptAssignExpr(SubscriptAssign expr);
     R visitLambdaExpr(Lambda expr);
     R visitDictionaryExpr(Dictionary expr);
+    R visitInvariantExpr(Invariant expr);
   }
-  abstract <R> R accept(Visitor<R> visitor);
-  static class Binary extends Expr {
+  public abstract <R> R accept(Visitor<R> visitor);
+  public static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
       this.right = right;
     }
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
+    public Specialization specialization = Specialization.UNINITIALIZED;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBinaryExpr(this);
     }
   }
-  static class Call extends Expr {
+  public static class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
     }
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
+    public final Expr callee;
+    public final Token paren;
+    public final List<Expr> arguments;
+    public Stmt.Function inlined;
+    public CallCache cache;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitCallExpr(this);
     }
   }
-  static class Grouping extends Expr {
+  public static class Grouping extends Expr {
     Grouping(Expr expression) {
       this.expression = expression;
     }
-    final Expr expression;
+    public final Expr expression;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitGroupingExpr(this);
     }
   }
-  static class Literal extends Expr {
+  public static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
     }
-    final Object value;
+    public final Object value;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLiteralExpr(this);
     }
   }
-  static class Unary extends Expr {
+  public static class Unary extends Expr {
     Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
     }
-    final Token operator;
-    final Expr right;
+    public final Token operator;
+    public final Expr right;
+    public Specialization specialization = Specialization.UNINITIALIZED;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitUnaryExpr(this);
     }
   }
-  static class Variable extends Expr {
+  public static class Variable extends Expr {
     Variable(Token identifier) {
       this.identifier = identifier;
     }
-    final Token identifier;
+    public final Token identifier;
+    public int depth = Resolver.GLOBAL;
+    public int slot;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVariableExpr(this);
     }
   }
-  static class Assign extends Expr {
+  public static class Assign extends Expr {
     Assign(Token identifier, Expr value) {
       this.identifier = identifier;
       this.value = value;
     }
-    final Token identifier;
-    final Expr value;
+    public final Token identifier;
+    public final Expr value;
+    public int depth = Resolver.GLOBAL;
+    public int slot;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitAssignExpr(this);
     }
   }
-  static class Logic extends Expr {
+  public static class Logic extends Expr {
     Logic(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
       this.right = right;
     }
-    final Expr left;
-    final Token operator;
-    final Expr right;
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLogicExpr(this);
     }
   }
-  static class Array extends Expr {
+  public static class Array extends Expr {
     Array(List<Expr> values) {
       this.values = values;
     }
-    final List<Expr> values;
+    public final List<Expr> values;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitArrayExpr(this);
     }
   }
-  static class Subscript extends Expr {
+  public static class Subscript extends Expr {
     Subscript(Expr subscriptee, Token bracket, Expr index) {
       this.subscriptee = subscriptee;
       this.bracket = bracket;
       this.index = index;
     }
-    final Expr subscriptee;
-    final Token bracket;
-    final Expr index;
+    public final Expr subscriptee;
+    public final Token bracket;
+    public final Expr index;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSubscriptExpr(this);
     }
   }
-  static class SubscriptAssign extends Expr {
+  public static class SubscriptAssign extends Expr {
     SubscriptAssign(Expr subscriptee, Token bracket, Expr index, Expr value) {
       this.subscriptee = subscriptee;
       this.bracket = bracket;
       this.index = index;
       this.value = value;
     }
-    final Expr subscriptee;
-    final Token bracket;
-    final Expr index;
-    final Expr value;
+    public final Expr subscriptee;
+    public final Token bracket;
+    public final Expr index;
+    public final Expr value;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitSubscriptAssignExpr(this);
     }
   }
-  static class Lambda extends Expr {
+  public static class Lambda extends Expr {
     Lambda(Stmt.Function function) {
       this.function = function;
     }
-    final Stmt.Function function;
+    public final Stmt.Function function;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitLambdaExpr(this);
     }
   }
-  static class Dictionary extends Expr {
+  public static class Dictionary extends Expr {
     Dictionary(List<Expr> dictionary) {
       this.dictionary = dictionary;
     }
-    final List<Expr> dictionary;
+    public final List<Expr> dictionary;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitDictionaryExpr(this);
     }
   }
+  public static class Invariant extends Expr {
+    Invariant(Variable cache, Assign store) {
+      this.cache = cache;
+      this.store = store;
+    }
+    public final Variable cache;
+    public final Assign store;
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInvariantExpr(this);
+    }
+  }
 }
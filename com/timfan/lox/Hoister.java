@@ -0,0 +1,380 @@
+package com.timfan.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hoists the parts of a while loop's condition and body that work out the same value on every
+ * iteration (e.g., n * 2, or len(array)) out of the loop, so that they are only worked out once.
+ *
+ * a part of a loop is invariant if nothing in the loop can change what it works out to: every variable
+ * it uses is neither assigned nor declared anywhere in the loop, and everything it calls is a native with
+ * no side effects (str, len). a loop that calls anything else at all, which could be a user function
+ * assigning to any variable it can see, has nothing hoisted out of it. subscripts are only invariant
+ * in a loop with no subscript assignments, and + only when both sides are numbers or strings
+ * (adding two arrays makes a new array every time, which each iteration has to get its own of).
+ *
+ * each invariant part becomes an Invariant, which keeps its value in a new variable declared (as nil)
+ * just before the loop: the first time the loop evaluates it, it is worked out as before, and saved,
+ * and from then on the saved value is used. so it is worked out at the same point as before (and fails
+ * the same way, on the same line, if it fails at all), just not again. a value that is nil is worked out
+ * again each time, which gives the same value, since nothing can change it.
+ *
+ * the new variable takes the next slot of the scope the loop is in, so only loops with no declarations
+ * after them in their scope (or in the global scope) are hoisted from.
+ */
+class Hoister implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+  /**
+   * What a loop (or the whole program) declares, assigns, and calls.
+   */
+  private static final class Effects {
+    final Set<String> declared = new HashSet<>();
+    final Set<String> assigned = new HashSet<>();
+    final List<Expr.Call> calls = new ArrayList<>();
+    boolean assignsSubscripts = false;
+    void scan(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        scan(statement);
+      }
+    }
+    void scan(Stmt stmt) {
+      if (stmt instanceof Stmt.Expression) {
+        scan(((Stmt.Expression)stmt).expression);
+      } else if (stmt instanceof Stmt.Print) {
+        scan(((Stmt.Print)stmt).expression);
+      } else if (stmt instanceof Stmt.VarDeclaration) {
+        Stmt.VarDeclaration declaration = (Stmt.VarDeclaration)stmt;
+        declared.add(declaration.identifier.lexeme);
+        if (declaration.initialiser != null) scan(declaration.initialiser);
+      } else if (stmt instanceof Stmt.Function) {
+        declared.add(((Stmt.Function)stmt).identifier.lexeme);
+        scan((Stmt.Function)stmt);
+      } else if (stmt instanceof Stmt.Block) {
+        scan(((Stmt.Block)stmt).statements);
+      } else if (stmt instanceof Stmt.If) {
+        Stmt.If ifStmt = (Stmt.If)stmt;
+        scan(ifStmt.condition);
+        scan(ifStmt.thenStmt);
+        if (ifStmt.elseStmt != null) scan(ifStmt.elseStmt);
+      } else if (stmt instanceof Stmt.While) {
+        scan(((Stmt.While)stmt).condition);
+        scan(((Stmt.While)stmt).body);
+      } else if (stmt instanceof Stmt.Return) {
+        if (((Stmt.Return)stmt).value != null) scan(((Stmt.Return)stmt).value);
+      }
+    }
+    void scan(Stmt.Function function) {
+      for (Token param : function.params) {
+        declared.add(param.lexeme);
+      }
+      scan(function.body);
+    }
+    void scan(Expr expr) {
+      if (expr instanceof Expr.Assign) assigned.add(((Expr.Assign)expr).identifier.lexeme);
+      if (expr instanceof Expr.SubscriptAssign) assignsSubscripts = true;
+      if (expr instanceof Expr.Call) calls.add((Expr.Call)expr);
+      if (expr instanceof Expr.Lambda) scan(((Expr.Lambda)expr).function);
+      for (Expr child : Inliner.children(expr)) {
+        scan(child);
+      }
+    }
+  }
+  /**
+   * The loop being hoisted from.
+   */
+  private static final class Loop {
+    final Effects effects;
+    final Stmt scope; // the Block or Function whose environment the loop runs in, or null for the global environment.
+    final List<Stmt> declarations = new ArrayList<>(); // of the variables for the hoisted values, to go before the loop.
+    Loop(Effects effects, Stmt scope) {
+      this.effects = effects;
+      this.scope = scope;
+    }
+  }
+
+  private final Interpreter interpreter;
+  private final Set<String> redefined = new HashSet<>(); // every name the program declares or assigns.
+  private Loop loop = null; // null when not hoisting from any loop, but only looking for loops.
+  private int depth = 0; // how many scopes in from the loop's scope we are.
+  private int hoisted = 0;
+  Hoister(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  void hoist(List<Stmt> statements) {
+    Effects program = new Effects();
+    program.scan(statements);
+    redefined.addAll(program.declared);
+    redefined.addAll(program.assigned);
+    hoist(statements, null);
+  }
+  /**
+   * Hoists from the loops in statements, and in anything inside them, in place.
+   * @param scope the Block or Function whose environment statements run in, or null for the global environment.
+   */
+  private void hoist(List<Stmt> statements, Stmt scope) {
+    for (int i = 0; i < statements.size(); i++) {
+      Stmt stmt = statements.get(i).accept(this);
+      if (stmt instanceof Stmt.While && (scope == null || !declaresAfter(statements, i))) {
+        Loop hoisting = new Loop(new Effects(), scope);
+        hoisting.effects.scan(stmt);
+        if (isPure(hoisting.effects)) {
+          loop = hoisting;
+          depth = 0;
+          stmt = stmt.accept(this);
+          loop = null;
+          statements.addAll(i, hoisting.declarations);
+          i += hoisting.declarations.size();
+        }
+      }
+      statements.set(i, stmt);
+    }
+  }
+  private static boolean declaresAfter(List<Stmt> statements, int index) {
+    for (int i = index + 1; i < statements.size(); i++) {
+      Stmt stmt = statements.get(i);
+      if (stmt instanceof Stmt.VarDeclaration || stmt instanceof Stmt.Function) return true;
+    }
+    return false;
+  }
+  private boolean isPure(Effects effects) {
+    for (Expr.Call call : effects.calls) {
+      if (!isPure(call)) return false;
+    }
+    return true;
+  }
+  private boolean isPure(Expr.Call call) {
+    if (!(call.callee instanceof Expr.Variable)) return false;
+    Expr.Variable callee = (Expr.Variable)call.callee;
+    String name = callee.identifier.lexeme;
+    return callee.depth == Resolver.GLOBAL && !redefined.contains(name) && interpreter.isPureNative(name);
+  }
+  private boolean isInvariant(Expr expr) {
+    if (expr instanceof Expr.Literal) return true;
+    if (expr instanceof Expr.Variable) {
+      String name = ((Expr.Variable)expr).identifier.lexeme;
+      return !loop.effects.declared.contains(name) && !loop.effects.assigned.contains(name);
+    }
+    if (expr instanceof Expr.Subscript) {
+      if (loop.effects.assignsSubscripts) return false;
+    } else if (isPlus(expr)) {
+      if (!isNumberOrString(((Expr.Binary)expr).left) || !isNumberOrString(((Expr.Binary)expr).right)) return false;
+    } else if (expr instanceof Expr.Call) {
+      if (!isPure((Expr.Call)expr)) return false;
+    } else if (!(expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Logic)) {
+      return false;
+    }
+    for (Expr child : Inliner.children(expr)) {
+      if (!isInvariant(child)) return false;
+    }
+    return true;
+  }
+  private static boolean isPlus(Expr expr) {
+    return expr instanceof Expr.Binary && ((Expr.Binary)expr).operator.type == TokenType.PLUS;
+  }
+  /**
+   * @return Whether expr always gives a number or a string, as str and len do.
+   */
+  private boolean isNumberOrString(Expr expr) {
+    if (expr instanceof Expr.Call) return isPure((Expr.Call)expr);
+    if (isPlus(expr)) return isNumberOrString(((Expr.Binary)expr).left) && isNumberOrString(((Expr.Binary)expr).right);
+    return Optimizer.isNumberOrString(expr);
+  }
+  /**
+   * @return The Invariant to use in expr's place, if expr is worth hoisting out of the loop, otherwise null.
+   */
+  private Expr hoist(Expr expr) {
+    if (loop == null || expr instanceof Expr.Literal || expr instanceof Expr.Variable || !isInvariant(expr)) return null;
+    Token identifier = new Token(TokenType.IDENTIFIER, "(loop invariant " + hoisted++ + ")", null, 0);
+    loop.declarations.add(new Stmt.VarDeclaration(identifier, null));
+    Expr.Variable cache = new Expr.Variable(identifier);
+    Expr.Assign store = new Expr.Assign(identifier, expr);
+    if (loop.scope != null) {
+      int slot = loop.scope instanceof Stmt.Block ? ((Stmt.Block)loop.scope).size++ : ((Stmt.Function)loop.scope).size++;
+      cache.depth = store.depth = depth;
+      cache.slot = store.slot = slot;
+    }
+    return new Expr.Invariant(cache, store);
+  }
+  private Expr rewrite(Expr expr) {
+    return expr.accept(this);
+  }
+  private List<Expr> rewriteExprs(List<Expr> exprs) {
+    List<Expr> rewritten = new ArrayList<>();
+    boolean changed = false;
+    for (Expr expr : exprs) {
+      Expr result = rewrite(expr);
+      rewritten.add(result);
+      changed |= result != expr;
+    }
+    return changed ? rewritten : exprs;
+  }
+
+  // the statements and expressions are rebuilt only if something inside them was hoisted,
+  // and statement lists are changed in place.
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = rewrite(stmt.expression);
+    return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+  }
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    // a function's body isn't run as part of the loop it is declared in, so only look for loops of its own.
+    if (loop == null) hoist(stmt.body, stmt);
+    return stmt;
+  }
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = rewrite(stmt.expression);
+    return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+  }
+  @Override
+  public Stmt visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    if (stmt.initialiser == null) return stmt;
+    Expr initialiser = rewrite(stmt.initialiser);
+    return initialiser == stmt.initialiser ? stmt : new Stmt.VarDeclaration(stmt.identifier, initialiser);
+  }
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    if (loop == null) {
+      hoist(stmt.statements, stmt);
+      return stmt;
+    }
+    depth++;
+    for (int i = 0; i < stmt.statements.size(); i++) {
+      stmt.statements.set(i, stmt.statements.get(i).accept(this));
+    }
+    depth--;
+    return stmt;
+  }
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt thenStmt = stmt.thenStmt.accept(this);
+    Stmt elseStmt = stmt.elseStmt == null ? null : stmt.elseStmt.accept(this);
+    if (condition == stmt.condition && thenStmt == stmt.thenStmt && elseStmt == stmt.elseStmt) return stmt;
+    return new Stmt.If(condition, thenStmt, elseStmt);
+  }
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt body = stmt.body.accept(this);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+    Expr value = rewrite(stmt.value);
+    if (value == stmt.value) return stmt;
+    Stmt.Return rewritten = new Stmt.Return(stmt.keyword, value);
+    rewritten.tailCall = stmt.tailCall;
+    return rewritten;
+  }
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr hoisted = hoist(expr);
+    if (hoisted != null) return hoisted;
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr hoisted = hoist(expr);
+    if (hoisted != null) return hoisted;
+    Expr right = rewrite(expr.right);
+    return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+  }
+  @Override
+  public Expr visitLogicExpr(Expr.Logic expr) {
+    Expr hoisted = hoist(expr);
+    if (hoisted != null) return hoisted;
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logic(left, expr.operator, right);
+  }
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr hoisted = hoist(expr);
+    if (hoisted != null) return hoisted;
+    Expr callee = rewrite(expr.callee);
+    List<Expr> arguments = rewriteExprs(expr.arguments);
+    if (callee == expr.callee && arguments == expr.arguments) return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+  @Override
+  public Expr visitSubscriptExpr(Expr.Subscript expr) {
+    Expr hoisted = hoist(expr);
+    if (hoisted != null) return hoisted;
+    Expr subscriptee = rewrite(expr.subscriptee);
+    Expr index = rewrite(expr.index);
+    if (subscriptee == expr.subscriptee && index == expr.index) return expr;
+    return new Expr.Subscript(subscriptee, expr.bracket, index);
+  }
+  @Override
+  public Expr visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    Expr subscriptee = rewrite(expr.subscriptee);
+    Expr index = rewrite(expr.index);
+    Expr value = rewrite(expr.value);
+    if (subscriptee == expr.subscriptee && index == expr.index && value == expr.value) return expr;
+    return new Expr.SubscriptAssign(subscriptee, expr.bracket, index, value);
+  }
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = rewrite(expr.value);
+    if (value == expr.value) return expr;
+    Expr.Assign assign = new Expr.Assign(expr.identifier, value);
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    return assign;
+  }
+  @Override
+  public Expr visitArrayExpr(Expr.Array expr) {
+    List<Expr> values = rewriteExprs(expr.values);
+    return values == expr.values ? expr : new Expr.Array(values);
+  }
+  @Override
+  public Expr visitDictionaryExpr(Expr.Dictionary expr) {
+    List<Expr> dictionary = rewriteExprs(expr.dictionary);
+    return dictionary == expr.dictionary ? expr : new Expr.Dictionary(dictionary);
+  }
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    // as for a function declaration.
+    if (loop == null) hoist(expr.function.body, expr.function);
+    return expr;
+  }
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = rewrite(expr.expression);
+    return expression == expr.expression ? expr : new Expr.Grouping(expression);
+  }
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    // already hoisted out of a loop inside this one.
+    return expr;
+  }
+}
@@ -0,0 +1,279 @@
+package com.timfan.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the calls of small functions whose whole body is a single return statement
+ * (e.g., fun square(x) { return x * x; }), and marks each Call with the function it calls,
+ * so that the Interpreter can evaluate the returned expression in place of making the call.
+ *
+ * the marking is only a good guess, made by name: a function is only inlined if its name is declared
+ * once in the program and never assigned to, and it can't end up calling itself. what decides is
+ * the Interpreter, which checks the callee it actually gets is the marked function, and makes
+ * an ordinary call if not (e.g., if the call is run before the function is declared).
+ *
+ * either way, the callee and then the arguments are evaluated in the caller's environment,
+ * and then the returned expression in a new environment for the parameters, whose parent is
+ * the function's closure, the same as in a call. so closures, and runtime errors
+ * (and the lines they are reported on), are just what they would be without inlining.
+ */
+class Inliner implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final int MAX_SIZE = 16; // how many Expr nodes the returned expression can have to be inlined.
+
+  private final Map<String, Integer> declarations = new HashMap<>(); // how many times each name is declared.
+  private final Set<String> assigned = new HashSet<>();
+  private final Map<String, Stmt.Function> functions = new HashMap<>();
+  private final List<Expr.Call> calls = new ArrayList<>();
+
+  void inline(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+    // the functions worth inlining, by name.
+    Map<String, Stmt.Function> inlinable = new HashMap<>();
+    for (Map.Entry<String, Stmt.Function> entry : functions.entrySet()) {
+      String name = entry.getKey();
+      Stmt.Function function = entry.getValue();
+      if (declarations.get(name) != 1 || assigned.contains(name)) continue;
+      if (isSmall(function)) inlinable.put(name, function);
+    }
+    // leave out any that could call themselves, through the others.
+    Set<String> recursive = new HashSet<>();
+    for (String name : inlinable.keySet()) {
+      if (reaches(name, name, inlinable, new HashSet<>())) recursive.add(name);
+    }
+    inlinable.keySet().removeAll(recursive);
+    for (Expr.Call call : calls) {
+      if (!(call.callee instanceof Expr.Variable)) continue;
+      Stmt.Function function = inlinable.get(((Expr.Variable)call.callee).identifier.lexeme);
+      // a call with the wrong number of arguments is left to fail as a call.
+      if (function != null && function.params.size() == call.arguments.size()) {
+        call.inlined = function;
+      }
+    }
+  }
+  /**
+   * @return The expression that function returns, if its body is nothing but a return of it, otherwise null.
+   */
+  static Expr returned(Stmt.Function function) {
+    if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return null;
+    return ((Stmt.Return)function.body.get(0)).value;
+  }
+  /**
+   * @return Whether function is small enough to be inlined (whether or not its calls end up being).
+   */
+  static boolean isSmall(Stmt.Function function) {
+    Expr returned = returned(function);
+    return returned != null && size(returned) <= MAX_SIZE;
+  }
+  /**
+   * @return Whether the function called from can call to, going only through inlinable functions.
+   */
+  private boolean reaches(String from, String to, Map<String, Stmt.Function> inlinable, Set<String> visited) {
+    if (!visited.add(from)) return false;
+    for (String callee : callees(returned(inlinable.get(from)))) {
+      if (callee.equals(to)) return true;
+      if (inlinable.containsKey(callee) && reaches(callee, to, inlinable, visited)) return true;
+    }
+    return false;
+  }
+  private static Set<String> callees(Expr expr) {
+    Set<String> callees = new HashSet<>();
+    if (expr instanceof Expr.Call && ((Expr.Call)expr).callee instanceof Expr.Variable) {
+      callees.add(((Expr.Variable)((Expr.Call)expr).callee).identifier.lexeme);
+    }
+    for (Expr child : children(expr)) {
+      callees.addAll(callees(child));
+    }
+    return callees;
+  }
+  private static int size(Expr expr) {
+    // a lambda's body is statements, and too much to be worth looking into.
+    if (expr instanceof Expr.Lambda) return MAX_SIZE + 1;
+    int size = 1;
+    for (Expr child : children(expr)) {
+      size += size(child);
+    }
+    return size;
+  }
+  /**
+   * @return The expressions directly inside expr (but not those in a lambda's body).
+   */
+  static List<Expr> children(Expr expr) {
+    List<Expr> children = new ArrayList<>();
+    if (expr instanceof Expr.Binary) {
+      children.add(((Expr.Binary)expr).left);
+      children.add(((Expr.Binary)expr).right);
+    } else if (expr instanceof Expr.Logic) {
+      children.add(((Expr.Logic)expr).left);
+      children.add(((Expr.Logic)expr).right);
+    } else if (expr instanceof Expr.Unary) {
+      children.add(((Expr.Unary)expr).right);
+    } else if (expr instanceof Expr.Grouping) {
+      children.add(((Expr.Grouping)expr).expression);
+    } else if (expr instanceof Expr.Assign) {
+      children.add(((Expr.Assign)expr).value);
+    } else if (expr instanceof Expr.Call) {
+      children.add(((Expr.Call)expr).callee);
+      children.addAll(((Expr.Call)expr).arguments);
+    } else if (expr instanceof Expr.Array) {
+      children.addAll(((Expr.Array)expr).values);
+    } else if (expr instanceof Expr.Dictionary) {
+      children.addAll(((Expr.Dictionary)expr).dictionary);
+    } else if (expr instanceof Expr.Subscript) {
+      children.add(((Expr.Subscript)expr).subscriptee);
+      children.add(((Expr.Subscript)expr).index);
+    } else if (expr instanceof Expr.SubscriptAssign) {
+      children.add(((Expr.SubscriptAssign)expr).subscriptee);
+      children.add(((Expr.SubscriptAssign)expr).index);
+      children.add(((Expr.SubscriptAssign)expr).value);
+    } else if (expr instanceof Expr.Invariant) {
+      children.add(((Expr.Invariant)expr).cache);
+      children.add(((Expr.Invariant)expr).store);
+    }
+    return children;
+  }
+  private void declare(Token identifier) {
+    declarations.merge(identifier.lexeme, 1, Integer::sum);
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.identifier);
+    functions.put(stmt.identifier.lexeme, stmt);
+    return visitFunction(stmt);
+  }
+  private Void visitFunction(Stmt.Function function) {
+    for (Token param : function.params) {
+      declare(param);
+    }
+    for (Stmt statement : function.body) {
+      statement.accept(this);
+    }
+    return null;
+  }
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    return stmt.expression.accept(this);
+  }
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    return stmt.expression.accept(this);
+  }
+  @Override
+  public Void visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    declare(stmt.identifier);
+    if (stmt.initialiser != null) stmt.initialiser.accept(this);
+    return null;
+  }
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    return null;
+  }
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    stmt.thenStmt.accept(this);
+    if (stmt.elseStmt != null) stmt.elseStmt.accept(this);
+    return null;
+  }
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    stmt.condition.accept(this);
+    return stmt.body.accept(this);
+  }
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null) stmt.value.accept(this);
+    return null;
+  }
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    return null;
+  }
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    return null;
+  }
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    calls.add(expr);
+    expr.callee.accept(this);
+    for (Expr argument : expr.arguments) {
+      argument.accept(this);
+    }
+    return null;
+  }
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    assigned.add(expr.identifier.lexeme);
+    return expr.value.accept(this);
+  }
+  @Override
+  public Void visitLambdaExpr(Expr.Lambda expr) {
+    return visitFunction(expr.function);
+  }
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+  @Override
+  public Void visitLogicExpr(Expr.Logic expr) {
+    expr.left.accept(this);
+    return expr.right.accept(this);
+  }
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    return expr.right.accept(this);
+  }
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    return expr.expression.accept(this);
+  }
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    return null;
+  }
+  @Override
+  public Void visitArrayExpr(Expr.Array expr) {
+    for (Expr value : expr.values) {
+      value.accept(this);
+    }
+    return null;
+  }
+  @Override
+  public Void visitDictionaryExpr(Expr.Dictionary expr) {
+    for (Expr value : expr.dictionary) {
+      value.accept(this);
+    }
+    return null;
+  }
+  @Override
+  public Void visitSubscriptExpr(Expr.Subscript expr) {
+    expr.subscriptee.accept(this);
+    return expr.index.accept(this);
+  }
+  @Override
+  public Void visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    expr.subscriptee.accept(this);
+    expr.index.accept(this);
+    return expr.value.accept(this);
+  }
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    return expr.store.accept(this);
+  }
+}
@@ -10,168 +10,310 @@ import java.util.Map;
  * Interpreter is a client that wants to operate on both Stmt objects, 
  * and also the Expr objects within those Stmt objects.
  */
-class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
-  final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>(); // Resolver letting us know how deep in the environment 
-                                                             // chain to search to find the intended variable declaration 
-                                                             // for each variable reference in the source code.
-  Interpreter() {
+public class Interpreter implements Stmt.Visitor<Completion>, Expr.Visitor<Object> {
+  public final Environment globals;
+  private Environment environment;
+  private ClosureCompiler closureCompiler = null; // if set, statements are compiled into closures, then run.
+  private final Map<String, Object> pureNatives; // the natives with no side effects, by name.
+  public Interpreter() {
+    globals = new Environment();
+    environment = globals;
+    pureNatives = new HashMap<>();
     // clock();
-    globals.define("clock", new LoxCallable() {
+    globals.define("clock", new LoxNative(0) {
       @Override
-      public int arity() { return 0; }
-      @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call0(Interpreter interpreter) {
         return (double)System.currentTimeMillis() / 1000.0;
       }
-      @Override
-      public String toString() { return "<native fn>"; }
     });
     // str(object);
-    globals.define("str", new LoxCallable() {
-      @Override
-      public int arity() { return 1; }
+    globals.define("str", new LoxNative(1) {
       @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        return stringify(arguments.get(0));
+      public Object call1(Interpreter interpreter, Object object) {
+        // (a rope is already a string, and is left to be flattened only if it has to be.)
+        if (object instanceof LoxRope) return object;
+        return Operators.stringify(object);
       }
-      @Override
-      public String toString() { return "<native fn>"; }
     });
     // len(array);
-    globals.define("len", new LoxCallable() {
-      @Override
-      public int arity() { return 1; }
+    globals.define("len", new LoxNative(1) {
       @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call1(Interpreter interpreter, Object values) {
         // Parse array list.
-        if (!(arguments.get(0) instanceof LoxArray)) {
+        if (!(values instanceof LoxArray)) {
           throw new RuntimeError("First argument to len must be an array.");
         }
-        LoxArray array = (LoxArray)arguments.get(0);
+        LoxArray array = (LoxArray)values;
 
         // Get its length.
-        return (double)array.list.size();
+        return (double)array.size();
       }
-      @Override
-      public String toString() { return "<native fn>"; }
     });
     // map(map, array);
-    globals.define("map", new LoxCallable() {
+    globals.define("map", new LoxNative(2) {
       @Override
-      public int arity() { return 2; }
-      @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call2(Interpreter interpreter, Object function, Object values) {
         // Parse map function.
-        if (!(arguments.get(0) instanceof LoxFunction)) {
+        if (!(function instanceof LoxCallable)) {
           throw new RuntimeError("First argument to map must be a function.");
         }
-        LoxFunction map = (LoxFunction)arguments.get(0);
+        LoxCallable map = (LoxCallable)function;
 
         // Map function must have exactly one parameter.
         if (map.arity() != 1) {
           throw new RuntimeError("Map function must take exactly one argument.");
         }
 
-        // Parse array list.
-        if (!(arguments.get(1) instanceof LoxArray)) {
-          throw new RuntimeError("Second argument to map must be an array.");
+        // Parse array list (or lazy sequence, which only gets another stage).
+        if (values instanceof LoxSequence) {
+          return ((LoxSequence)values).map(map);
+        }
+        if (!(values instanceof LoxArray)) {
+          throw new RuntimeError("Second argument to map must be an array or a sequence.");
         }
-        LoxArray array = (LoxArray)arguments.get(1);
+        LoxArray array = (LoxArray)values;
 
-        // Do the map.
-        List<Object> appliedList = new ArrayList<>();
-        for (Object item : array.list) {
-          appliedList.add(map.call(interpreter, Arrays.asList(item)));
+        // Do the map (which gives an array of numbers, for as long as map gives back numbers).
+        LoxArray applied = new LoxArray();
+        for (int i = 0; i < array.size(); i++) {
+          Object item = array.isNumbers() ? array.getNumber(i) : array.get(i);
+          applied.add(map.call1(interpreter, item));
         }
-        return new LoxArray(appliedList);
+        return applied;
       }
-      @Override
-      public String toString() { return "<native fn>"; }
     });
     // filter(filter, array);
-    globals.define("filter", new LoxCallable() {
-      @Override
-      public int arity() { return 2; }
+    globals.define("filter", new LoxNative(2) {
       @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call2(Interpreter interpreter, Object function, Object values) {
         // Parse filter function.
-        if (!(arguments.get(0) instanceof LoxFunction)) {
+        if (!(function instanceof LoxCallable)) {
           throw new RuntimeError("First argument to filter must be a function.");
         }
-        LoxFunction filter = (LoxFunction)arguments.get(0);
+        LoxCallable filter = (LoxCallable)function;
 
         // Filter function must have exactly one parameter.
         if (filter.arity() != 1) {
           throw new RuntimeError("Filter function must take exactly one argument.");
         }
 
-        // Parse array list.
-        if (!(arguments.get(1) instanceof LoxArray)) {
-          throw new RuntimeError("Second argument to filter must be an array.");
+        // Parse array list (or lazy sequence, which only gets another stage).
+        if (values instanceof LoxSequence) {
+          return ((LoxSequence)values).filter(filter);
         }
-        LoxArray array = (LoxArray)arguments.get(1);
+        if (!(values instanceof LoxArray)) {
+          throw new RuntimeError("Second argument to filter must be an array or a sequence.");
+        }
+        LoxArray array = (LoxArray)values;
 
         // Do the filter.
-        List<Object> filteredList = new ArrayList<>();
-        for (Object item : array.list) {
-          if (isTruthy(filter.call(interpreter, Arrays.asList(item)))) {
-            filteredList.add(item);
+        LoxArray filtered = new LoxArray();
+        for (int i = 0; i < array.size(); i++) {
+          if (array.isNumbers()) {
+            double item = array.getNumber(i);
+            if (Operators.isTruthy(filter.call1(interpreter, item))) {
+              filtered.addNumber(item);
+            }
+          } else {
+            Object item = array.get(i);
+            if (Operators.isTruthy(filter.call1(interpreter, item))) {
+              filtered.add(item);
+            }
           }
         }
-        return new LoxArray(filteredList);
+        return filtered;
       }
-      @Override
-      public String toString() { return "<native fn>"; }
     });
     // reduce(reduce, array);
-    globals.define("reduce", new LoxCallable() {
-      @Override
-      public int arity() { return 2; }
+    globals.define("reduce", new LoxNative(2) {
       @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call2(Interpreter interpreter, Object function, Object values) {
         // Parse reduce function.
-        if (!(arguments.get(0) instanceof LoxFunction)) {
+        if (!(function instanceof LoxCallable)) {
           throw new RuntimeError("First argument to reduce must be a function.");
         }
-        LoxFunction reduce = (LoxFunction)arguments.get(0);
+        LoxCallable reduce = (LoxCallable)function;
 
         // Reducer function must have exactly two parameters.
         if (reduce.arity() != 2) {
           throw new RuntimeError("Reducer function must take exactly two arguments.");
         }
 
-        // Parse array list.
-        if (!(arguments.get(1) instanceof LoxArray)) {
-          throw new RuntimeError("Second argument to reduce must be an array.");
+        // Parse array list (or lazy sequence, whose stages are all run now, in the same pass as the reduce).
+        if (values instanceof LoxSequence) {
+          Object[] result = { null };
+          boolean[] first = { true };
+          ((LoxSequence)values).run(interpreter, item -> {
+            result[0] = first[0] ? item : reduce.call2(interpreter, result[0], item);
+            first[0] = false;
+          });
+          return result[0];
+        }
+        if (!(values instanceof LoxArray)) {
+          throw new RuntimeError("Second argument to reduce must be an array or a sequence.");
         }
-        LoxArray array = (LoxArray)arguments.get(1);
-        List<Object> list = array.list;
+        LoxArray array = (LoxArray)values;
 
         // Do the reduce.
-        if (list.size() == 0) {
+        if (array.size() == 0) {
           return null;
         }
-        if (list.size() == 1) {
-          return list.get(0);
+        if (array.size() == 1) {
+          return array.get(0);
         }
-        Object result = list.get(0);
-        for (int i = 1; i < list.size(); i++) {
-          result = reduce.call(interpreter, Arrays.asList(result, list.get(i)));
+        Object result = array.get(0);
+        for (int i = 1; i < array.size(); i++) {
+          Object item = array.isNumbers() ? array.getNumber(i) : array.get(i);
+          result = reduce.call2(interpreter, result, item);
         }
         return result;
       }
+    });
+    // lazy(array);
+    globals.define("lazy", new LoxNative(1) {
+      @Override
+      public Object call1(Interpreter interpreter, Object values) {
+        if (!(values instanceof LoxArray)) {
+          throw new RuntimeError("First argument to lazy must be an array.");
+        }
+        return new LoxSequence((LoxArray)values);
+      }
+    });
+    // take(count, sequence);
+    globals.define("take", new LoxNative(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object number, Object values) {
+        // Parse count, which has to be a whole number.
+        if (!(number instanceof Double) || Math.floor((double)number) != (double)number) {
+          throw new RuntimeError("First argument to take must be an integer.");
+        }
+        int count = (int)Math.max(0, Math.min(Integer.MAX_VALUE, (double)number));
+
+        // Parse sequence (or array, of which the first count values are taken straight away).
+        if (values instanceof LoxSequence) {
+          return ((LoxSequence)values).take(count);
+        }
+        if (!(values instanceof LoxArray)) {
+          throw new RuntimeError("Second argument to take must be an array or a sequence.");
+        }
+        LoxArray array = (LoxArray)values;
+        LoxArray taken = new LoxArray();
+        for (int i = 0; i < array.size() && i < count; i++) {
+          taken.add(array.get(i));
+        }
+        return taken;
+      }
+    });
+    // collect(sequence);
+    globals.define("collect", new LoxNative(1) {
+      @Override
+      public Object call1(Interpreter interpreter, Object sequence) {
+        if (!(sequence instanceof LoxSequence)) {
+          throw new RuntimeError("First argument to collect must be a sequence.");
+        }
+        // Run all the sequence's stages, into an array.
+        LoxArray collected = new LoxArray();
+        ((LoxSequence)sequence).run(interpreter, collected::add);
+        return collected;
+      }
+    });
+    // memo(function, size);
+    globals.define("memo", new LoxNative(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object function, Object number) {
+        if (!(function instanceof LoxCallable)) {
+          throw new RuntimeError("First argument to memo must be a function.");
+        }
+        // Parse size, how many results to remember, which has to be a positive whole number.
+        if (!(number instanceof Double) || Math.floor((double)number) != (double)number || (double)number < 1) {
+          throw new RuntimeError("Second argument to memo must be a positive integer.");
+        }
+        int size = (int)Math.min(Integer.MAX_VALUE, (double)number);
+        return new LoxMemo((LoxCallable)function, size);
+      }
+    });
+    // memostats(memo);
+    globals.define("memostats", new LoxNative(1) {
+      @Override
+      public Object call1(Interpreter interpreter, Object memo) {
+        if (!(memo instanceof LoxMemo)) {
+          throw new RuntimeError("First argument to memostats must be a function made by memo.");
+        }
+        return ((LoxMemo)memo).stats();
+      }
+    });
+    // str and len only work out a value from their arguments.
+    for (String name : Arrays.asList("str", "len")) {
+      pureNatives.put(name, globals.global(name).value());
+    }
+    // pmap(map, array), pfilter(filter, array) and preduce(reduce, array),
+    // which are map, filter and reduce, but spread over every core when the function is safe to (see Parallel).
+    LoxCallable map = (LoxCallable)globals.global("map").value();
+    LoxCallable filter = (LoxCallable)globals.global("filter").value();
+    LoxCallable reduce = (LoxCallable)globals.global("reduce").value();
+    globals.define("pmap", new LoxNative(2) {
       @Override
-      public String toString() { return "<native fn>"; }
+      public Object call2(Interpreter interpreter, Object function, Object values) {
+        if (!Parallel.isSafe(interpreter, function, 1, values)) {
+          return map.call2(interpreter, function, values);
+        }
+        return Parallel.map(interpreter, (LoxFunction)function, (LoxArray)values);
+      }
     });
+    globals.define("pfilter", new LoxNative(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object function, Object values) {
+        if (!Parallel.isSafe(interpreter, function, 1, values)) {
+          return filter.call2(interpreter, function, values);
+        }
+        return Parallel.filter(interpreter, (LoxFunction)function, (LoxArray)values);
+      }
+    });
+    globals.define("preduce", new LoxNative(2) {
+      @Override
+      public Object call2(Interpreter interpreter, Object function, Object values) {
+        if (!Parallel.isSafe(interpreter, function, 2, values)) {
+          return reduce.call2(interpreter, function, values);
+        }
+        return Parallel.reduce(interpreter, (LoxFunction)function, (LoxArray)values);
+      }
+    });
+  }
+  /**
+   * An interpreter for another thread to call functions with: it shares parent's globals and engine,
+   * but has an environment of its own.
+   */
+  private Interpreter(Interpreter parent) {
+    globals = parent.globals;
+    environment = globals;
+    closureCompiler = parent.closureCompiler;
+    pureNatives = parent.pureNatives;
+  }
+  Interpreter worker() {
+    return new Interpreter(this);
+  }
+  /**
+   * @return Whether the global called name is still one of the natives that only work out a value
+   * from their arguments, and so can be called fewer times without anyone being able to tell.
+   */
+  boolean isPureNative(String name) {
+    Object function = pureNatives.get(name);
+    return function != null && globals.global(name).value() == function;
   }
 
-  public void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  /**
+   * From now on, compile statements with a ClosureCompiler before running them,
+   * instead of visiting them each time they run.
+   */
+  public void compileToClosures() {
+    closureCompiler = new ClosureCompiler(this);
   }
   public void interpret(List<Stmt> statements) {
     try {
+      if (closureCompiler != null) {
+        closureCompiler.compile(statements).execute(globals);
+        return;
+      }
       for (Stmt statement : statements) {
         execute(statement);
       }
@@ -180,63 +322,72 @@ class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
     } 
   }
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Completion visitReturnStmt(Stmt.Return stmt) {
     // return to the instruction that called the function we are in right now.
-    // See LoxFunction.java/call.
-    throw new Return(evaluate(stmt.value));
+    // every statement between here and there passes this completion on. See LoxFunction.java/call.
+    // a return statement without a value returns nil.
+    if (!stmt.tailCall) return Completion.returning(stmt.value == null ? null : evaluate(stmt.value));
+    // a tail call to another Lox function isn't made here, but by LoxFunction.call
+    // once this call has finished, so that the Java stack doesn't grow with every tail call.
+    Expr.Call call = (Expr.Call)stmt.value;
+    Object callee = evaluate(call.callee);
+    List<Object> arguments = evaluateArguments(call);
+    LoxCallable function = CallCache.of(call).check(callee, arguments.size());
+    if (function instanceof LoxFunction) return Completion.tailCall((LoxFunction)function, arguments);
+    return Completion.returning(function.call(this, arguments));
   }
   @Override
-  public Void visitBreakStmt(Stmt.Break stmt) {
-    throw new Break();
+  public Completion visitBreakStmt(Stmt.Break stmt) {
+    return Completion.BREAK;
   }
   @Override
-  public Void visitContinueStmt(Stmt.Continue stmt) {
-    throw new Continue();
+  public Completion visitContinueStmt(Stmt.Continue stmt) {
+    return Completion.CONTINUE;
   }
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
+  public Completion visitWhileStmt(Stmt.While stmt) {
     Expr condition = stmt.condition;
     Stmt body = stmt.body;
-    while (isTruthy(evaluate(condition))) {
-      try {
-        execute(body);
-      } catch (Break breakException) {
-        break;
-      } catch (Continue continueException) {
-        continue;
-      }
+    while (Operators.isTruthy(evaluate(condition))) {
+      Completion completion = execute(body);
+      if (completion == Completion.BREAK) break;
+      // a return leaves the loop, and keeps going up to the function call.
+      if (completion.returns()) return completion;
+      // and a continue just goes on to the next iteration, same as finishing normally.
     }
-    return null;
+    return Completion.NORMAL;
   }
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Completion visitIfStmt(Stmt.If stmt) {
     Object conditionResult = evaluate(stmt.condition);
-    if (isTruthy(conditionResult)) {
+    if (Operators.isTruthy(conditionResult)) {
       // if is true execute the then statement.
-      execute(stmt.thenStmt);
+      return execute(stmt.thenStmt);
     } else if (stmt.elseStmt != null) {
       // else execute the else statement, if there is one.
-      execute(stmt.elseStmt);
+      return execute(stmt.elseStmt);
     }
-    return null;
+    return Completion.NORMAL;
   }
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
     // this function belongs to the current environment, 
     // its closure is this current environment.
     LoxFunction function = new LoxFunction(stmt, environment);
     // to interpret the given function declaration,
     // add it to the current namespace, so that it is ready in a visitCallExpr().
-    environment.define(stmt.identifier.lexeme, function);
-    return null;
+    environment.define(stmt.identifier, function);
+    return Completion.NORMAL;
   }
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
+  public Completion visitBlockStmt(Stmt.Block stmt) {
     // this block will run in an environment that has this.environment as its parent.
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+    return executeBlock(stmt.statements, new Environment(environment, stmt.size));
   }
-  public void executeBlock(List<Stmt> statements, Environment local) {
+  /**
+   * @return How the block finished: NORMAL, or the first break, continue, or return that stopped it early.
+   */
+  public Completion executeBlock(List<Stmt> statements, Environment local) {
     /**
      * it's tempting to instead write:
      * 
@@ -269,54 +420,101 @@ class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
     try {
       this.environment = local;
       for (Stmt statement : statements) {
-        execute(statement);
+        Completion completion = execute(statement);
+        if (completion != Completion.NORMAL) return completion;
       }
+      return Completion.NORMAL;
     } finally {
       // finished executing block, revert environment back.
       this.environment = previous;
     }
   } 
   @Override
-  public Void visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
-    String name = stmt.identifier.lexeme;
+  public Completion visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
     Object value = null;
     if (stmt.initialiser != null) {
       value = evaluate(stmt.initialiser);
     }
-    environment.define(name, value);
-    return null;
+    environment.define(stmt.identifier, value);
+    return Completion.NORMAL;
   }
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
     // evaluate the expression within this statement.
-    evaluate(stmt.expression);
-    return null;
+    if (stmt.expression instanceof Expr.Assign && isArithmetic(((Expr.Assign)stmt.expression).value)) {
+      // (e.g. i = i + 1, whose value isn't used, so never needs boxing.)
+      try {
+        number(stmt.expression);
+      } catch (NotANumber unused) {
+        // it has been evaluated all the same.
+      }
+    } else {
+      evaluate(stmt.expression);
+    }
+    return Completion.NORMAL;
   }
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Completion visitPrintStmt(Stmt.Print stmt) {
     // evaluate the expression within this statement, and print out the result.
-    System.out.println(stringify(evaluate(stmt.expression)));
-    return null;
+    System.out.println(Operators.stringify(evaluate(stmt.expression)));
+    return Completion.NORMAL;
   }
   @Override
   public Object visitLambdaExpr(Expr.Lambda expr) {
-    return new LoxFunction((Stmt.Function)expr.function, environment);
+    return new LoxFunction(expr.function, environment);
   }
   @Override
   public Object visitCallExpr(Expr.Call expr) {
     Object callee = evaluate(expr.callee);
+    if (expr.inlined != null && callee instanceof LoxFunction && ((LoxFunction)callee).declaration == expr.inlined) {
+      return inline((LoxFunction)callee, expr);
+    }
+    // a call with up to 3 arguments keeps them in locals, rather than a List (see LoxCallable).
+    int count = expr.arguments.size();
+    List<Object> arguments = count > 3 ? evaluateArguments(expr) : null;
+    Object a = count > 0 && count <= 3 ? evaluate(expr.arguments.get(0)) : null;
+    Object b = count > 1 && count <= 3 ? evaluate(expr.arguments.get(1)) : null;
+    Object c = count > 2 && count <= 3 ? evaluate(expr.arguments.get(2)) : null;
+    LoxCallable function = CallCache.of(expr).check(callee, count);
+    try {
+      switch (count) {
+        case 0: return function.call0(this);
+        case 1: return function.call1(this, a);
+        case 2: return function.call2(this, a, b);
+        case 3: return function.call3(this, a, b, c);
+        default: return function.call(this, arguments);
+      }
+    } catch (StackOverflowError error) {
+      // every Lox call here is a few Java calls deep, so too much recursion runs out of Java stack.
+      // report it like any other runtime error, blaming the innermost call that can.
+      throw new RuntimeError(expr.paren, "Stack overflow.");
+    }
+  }
+  /**
+   * Calls function, which the Inliner has found returns a single expression, without all the work of
+   * a call (see LoxFunction.call): the expression is just evaluated in place, with the parameters
+   * defined in a new environment around the function's closure.
+   */
+  private Object inline(LoxFunction function, Expr.Call expr) {
+    Stmt.Function declaration = function.declaration;
+    Environment local = new Environment(function.closure, declaration.size);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      local.define(declaration.params.get(i), evaluate(expr.arguments.get(i)));
+    }
+    Environment previous = this.environment;
+    try {
+      this.environment = local;
+      return evaluate(Inliner.returned(declaration));
+    } finally {
+      this.environment = previous;
+    }
+  }
+  private List<Object> evaluateArguments(Expr.Call expr) {
     List<Object> arguments = new ArrayList<>();
     for (Expr argument : expr.arguments) {
       arguments.add(evaluate(argument));
     }
-    if (!(callee instanceof LoxCallable)) {
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
-    }
-    LoxCallable function = (LoxCallable)callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
-    }
-    return function.call(this, arguments);
+    return arguments;
   }
   @Override
   public Object visitLogicExpr(Expr.Logic expr) {
@@ -324,12 +522,12 @@ class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
     Object left = evaluate(expr.left);
     // first check if we can short circuit.
     if (expr.operator.type == TokenType.AND) {
-      if (!isTruthy(left)) return Boolean.FALSE;
+      if (!Operators.isTruthy(left)) return Boolean.FALSE;
     } else /* if type is OR */ {
-      if (isTruthy(left)) return Boolean.TRUE;
+      if (Operators.isTruthy(left)) return Boolean.TRUE;
     }
     // we can't short circuit.
-    return isTruthy(evaluate(expr.right));
+    return Operators.isTruthy(evaluate(expr.right));
   }
   private Environment ancestor(int depth) {
     // go depth levels into the environment chain, 
@@ -342,128 +540,237 @@ class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
   }
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
-    Token identifier = expr.identifier;
     Object value = evaluate(expr.value);
-    Integer depth = locals.get(expr);
-    if (depth == null) {
+    assign(expr, value);
+    return value;
+  }
+  private void assign(Expr.Assign expr, Object value) {
+    // the Resolver has let us know how deep in the environment chain to go to find 
+    // the intended variable declaration, and which slot of that environment it is in.
+    if (expr.depth == Resolver.GLOBAL) {
       // try the global environment.
-      globals.assign(identifier, value);
+      globals.assign(expr.identifier, value);
     } else {
       // go to the specific local environment that the user intends.
-      ancestor(depth).assign(identifier, value);
+      ancestor(expr.depth).assignAt(expr.slot, value);
     }
-    return value;
   }
   @Override
   public Object visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
     // parse subscriptee.
-    Object subscripteeObject = evaluate(expr.subscriptee);
-    if (!(subscripteeObject instanceof LoxArray) && !(subscripteeObject instanceof LoxDictionary)) {
-      throw new RuntimeError(expr.bracket, "Can only use subscript operator [] on arrays or dictionaries.");
-    }
-    if (subscripteeObject instanceof LoxArray) {
-      List<Object> list = ((LoxArray)subscripteeObject).list;
-
-      // parse index.
-      Object indexObject = evaluate(expr.index);
-      if (!(indexObject instanceof Double)) {
-        throw new RuntimeError(expr.bracket, "Can only use subscript operator [] with integers.");
-      }
-      Double index = (Double)indexObject;
-      if (Math.floor(index) != index) {
-        throw new RuntimeError(expr.bracket, "Can only use subscript operator [] with integers.");
-      }
-      if (index.intValue() < 0 || index.intValue() >= list.size()) {
-        throw new RuntimeError(expr.bracket, "Array index out of bounds.");
-      }
-
-      // parse value.
-      Object value = evaluate(expr.value);
+    Object subscriptee = evaluate(expr.subscriptee);
+    Operators.checkSubscriptable(expr.bracket, subscriptee);
 
-      // assign array at index to value.
-      list.set(index.intValue(), value);
-      return value;
-    } else if (subscripteeObject instanceof LoxDictionary) {
-      Map<Object, Object> dictionary = ((LoxDictionary)subscripteeObject).dictionary;
+    // parse index.
+    Object index = evaluate(expr.index);
+    Operators.checkSubscriptIndex(expr.bracket, subscriptee, index);
 
-      // parse index.
-      Object index = evaluate(expr.index);
-
-      // parse value.
-      Object value = evaluate(expr.value);
+    // parse value.
+    Object value = evaluate(expr.value);
 
-      // insert into (or update) dictionary.
-      dictionary.put(index, value);
-      return value;
-    }
-    // Control should not reach here...
-    throw new RuntimeError(expr.bracket, "Control should not reach here... Check if the thing that used [] on was an array or dictionary.");
+    // assign array at index to value, or insert into (or update) dictionary.
+    return Operators.setSubscript(expr.bracket, subscriptee, index, value);
   }
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    Token identifier = expr.identifier;
-    Integer depth = locals.get(expr);
-    if (depth == null) {
+    if (expr.depth == Resolver.GLOBAL) {
       // try the global environment.
       return globals.get(expr.identifier);
     } else {
       // go to the specific local environment that the user intends.
-      return ancestor(depth).get(identifier);
+      return ancestor(expr.depth).getAt(expr.slot);
     }
   }
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    // has this operator specialized itself to the types of operands it has seen so far?
+    // if so, check for just those types, and skip all of Operators' checks.
+    if (expr.specialization == Specialization.NUMBERS) {
+      // the operands are worked out as doubles, so only the result is boxed.
+      double left;
+      try {
+        left = number(expr.left);
+      } catch (NotANumber notANumber) {
+        return despecialize(expr, notANumber.value, evaluate(expr.right));
+      }
+      double right;
+      try {
+        right = number(expr.right);
+      } catch (NotANumber notANumber) {
+        return despecialize(expr, left, notANumber.value);
+      }
+      return numbers(expr.operator, left, right);
+    }
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
-    Token operator = expr.operator;
-    switch (operator.type) {
-      case TokenType.PLUS:
-        if ((left instanceof String) && (right instanceof String)) {
-          return (String)left + (String)right;
-        }
-        if ((left instanceof Double) && (right instanceof Double)) {
-          return (double)left + (double)right;
+    switch (expr.specialization) {
+      case Specialization.STRINGS:
+        if (LoxRope.isString(left) && LoxRope.isString(right)) {
+          return LoxRope.concatenate(left, right);
         }
+        break;
+      case Specialization.ARRAYS:
         if ((left instanceof LoxArray) && (right instanceof LoxArray)) {
-          List<Object> list = new ArrayList<>();
-          list.addAll(((LoxArray)left).list);
-          list.addAll(((LoxArray)right).list);
-          return new LoxArray(list);
+          return Operators.concatenate((LoxArray)left, (LoxArray)right);
         }
-        throw new RuntimeError(operator, "Can only add two numbers or two strings together");
-      case TokenType.MINUS:
-        checkNumberOperand(operator, left, right);
-        return (double)left - (double)right;
-      case TokenType.STAR:
-        checkNumberOperand(operator, left, right);
-        return (double)left * (double)right;
-      case TokenType.SLASH:
-        checkNumberOperand(operator, left, right);
-        return (double)left / (double)right;
-      case TokenType.LESS:
-        checkNumberOperand(operator, left, right);
-        return (double)left < (double)right;
-      case TokenType.GREATER:
-        checkNumberOperand(operator, left, right);
-        return (double)left > (double)right;
-      case TokenType.LESS_EQUAL:
-        checkNumberOperand(operator, left, right);
-        return (double)left <= (double)right;
-      case TokenType.GREATER_EQUAL:
-        checkNumberOperand(operator, left, right);
-        return (double)left >= (double)right;
-      case TokenType.EQUAL_EQUAL:
-        checkNumberOperand(operator, left, right);
-        return (double) left == (double)right;
-      case TokenType.BANG_EQUAL:
-        checkNumberOperand(operator, left, right);
-        return (double) left != (double)right;
+        break;
+      case Specialization.UNINITIALIZED:
+        expr.specialization = specialize(expr.operator, left, right);
+        return Operators.binary(expr.operator, left, right);
+      case Specialization.GENERIC:
+        return Operators.binary(expr.operator, left, right);
+    }
+    return despecialize(expr, left, right);
+  }
+  /**
+   * The operands aren't of the types this operator specialized itself to, so stop specializing.
+   */
+  private static Object despecialize(Expr.Binary expr, Object left, Object right) {
+    expr.specialization = Specialization.GENERIC;
+    return Operators.binary(expr.operator, left, right);
+  }
+  /**
+   * @return What an operator should specialize itself to, the first time it is given left and right.
+   */
+  private static Specialization specialize(Token operator, Object left, Object right) {
+    if ((left instanceof Double) && (right instanceof Double)) {
+      return Specialization.NUMBERS;
+    }
+    if (operator.type == TokenType.PLUS) {
+      if (LoxRope.isString(left) && LoxRope.isString(right)) return Specialization.STRINGS;
+      if ((left instanceof LoxArray) && (right instanceof LoxArray)) return Specialization.ARRAYS;
+    }
+    return Specialization.GENERIC;
+  }
+  /**
+   * A binary operator, once both operands are known to be numbers.
+   */
+  private static Object numbers(Token operator, double left, double right) {
+    switch (operator.type) {
+      case TokenType.PLUS:          return left + right;
+      case TokenType.MINUS:         return left - right;
+      case TokenType.STAR:          return left * right;
+      case TokenType.SLASH:         return left / right;
+      case TokenType.LESS:          return left < right;
+      case TokenType.GREATER:       return left > right;
+      case TokenType.LESS_EQUAL:    return left <= right;
+      case TokenType.GREATER_EQUAL: return left >= right;
+      case TokenType.EQUAL_EQUAL:   return left == right;
+      case TokenType.BANG_EQUAL:    return left != right;
       default:
         break;
     }
     // control should not reach here...
     return null;
   }
+  /**
+   * @return Whether expr is arithmetic that has only ever given numbers,
+   * so that number can work it out as a double, without boxing anything along the way.
+   */
+  private static boolean isArithmetic(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      return binary.specialization == Specialization.NUMBERS && isArithmetic(binary.operator);
+    }
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary)expr).specialization == Specialization.NUMBERS;
+    }
+    if (expr instanceof Expr.Grouping) return isArithmetic(((Expr.Grouping)expr).expression);
+    return false;
+  }
+  private static boolean isArithmetic(Token operator) {
+    TokenType type = operator.type;
+    return type == TokenType.PLUS || type == TokenType.MINUS || type == TokenType.STAR || type == TokenType.SLASH;
+  }
+  /**
+   * Evaluates expr, for an operator that has specialized itself to numbers, as a double.
+   *
+   * arithmetic, negations, number literals, variables and subscripts of arrays of numbers
+   * are all worked out without boxing anything, and an assignment of arithmetic keeps the number
+   * unboxed in its variable (see Environment.assignNumberAt). anything else is evaluated as usual,
+   * and then unboxed.
+   * @throws NotANumber With what expr gave, if it wasn't a number after all.
+   */
+  private double number(Expr expr) {
+    // (the most common first, and each in a method of its own, to keep this one small.)
+    if (expr instanceof Expr.Variable) return number((Expr.Variable)expr);
+    if (expr instanceof Expr.Literal) return NotANumber.expect(((Expr.Literal)expr).value);
+    if (expr instanceof Expr.Binary) return number((Expr.Binary)expr);
+    if (expr instanceof Expr.Subscript) return number((Expr.Subscript)expr);
+    if (expr instanceof Expr.Unary) return number((Expr.Unary)expr);
+    if (expr instanceof Expr.Assign) return number((Expr.Assign)expr);
+    if (expr instanceof Expr.Grouping) return number(((Expr.Grouping)expr).expression);
+    return NotANumber.expect(evaluate(expr));
+  }
+  private double number(Expr.Variable expr) {
+    if (expr.depth == Resolver.GLOBAL) return globals.global(expr.identifier).number(expr.identifier);
+    return ancestor(expr.depth).numberAt(expr.slot);
+  }
+  private double number(Expr.Binary expr) {
+    if (expr.specialization != Specialization.NUMBERS || !isArithmetic(expr.operator)) {
+      return NotANumber.expect(evaluate(expr));
+    }
+    double left;
+    try {
+      left = number(expr.left);
+    } catch (NotANumber notANumber) {
+      throw new NotANumber(despecialize(expr, notANumber.value, evaluate(expr.right)));
+    }
+    double right;
+    try {
+      right = number(expr.right);
+    } catch (NotANumber notANumber) {
+      throw new NotANumber(despecialize(expr, left, notANumber.value));
+    }
+    return arithmetic(expr.operator, left, right);
+  }
+  private double number(Expr.Subscript expr) {
+    Object subscriptee = evaluate(expr.subscriptee);
+    Operators.checkSubscriptable(expr.bracket, subscriptee);
+    if (subscriptee instanceof LoxArray && ((LoxArray)subscriptee).isNumbers()) {
+      double index;
+      try {
+        index = number(expr.index);
+      } catch (NotANumber notANumber) {
+        // (which is an error, as the index isn't a number.)
+        return NotANumber.expect(Operators.getSubscript(expr.bracket, subscriptee, notANumber.value));
+      }
+      return Operators.getNumberSubscript(expr.bracket, (LoxArray)subscriptee, index);
+    }
+    return NotANumber.expect(Operators.getSubscript(expr.bracket, subscriptee, evaluate(expr.index)));
+  }
+  private double number(Expr.Unary expr) {
+    if (expr.specialization != Specialization.NUMBERS) return NotANumber.expect(evaluate(expr));
+    try {
+      return -number(expr.right);
+    } catch (NotANumber notANumber) {
+      expr.specialization = Specialization.GENERIC;
+      return NotANumber.expect(Operators.negate(expr.operator, notANumber.value));
+    }
+  }
+  private double number(Expr.Assign expr) {
+    if (!isArithmetic(expr.value)) return NotANumber.expect(evaluate(expr));
+    double value;
+    try {
+      value = number(expr.value);
+    } catch (NotANumber notANumber) {
+      assign(expr, notANumber.value);
+      throw notANumber;
+    }
+    if (expr.depth == Resolver.GLOBAL) {
+      globals.global(expr.identifier).assignNumber(expr.identifier, value);
+    } else {
+      ancestor(expr.depth).assignNumberAt(expr.slot, value);
+    }
+    return value;
+  }
+  private static double arithmetic(Token operator, double left, double right) {
+    TokenType type = operator.type;
+    if (type == TokenType.PLUS) return left + right;
+    if (type == TokenType.MINUS) return left - right;
+    if (type == TokenType.STAR) return left * right;
+    return left / right;
+  }
   @Override
   public Object visitGroupingExpr(Expr.Grouping expr) {
     return evaluate(expr.expression);
@@ -474,15 +781,24 @@ class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
   }
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
-    Object value = expr.right.accept(this);
     switch (expr.operator.type) {
       case TokenType.MINUS:
-        // make sure value is a Double.
-        checkNumberOperand(expr.operator, value);
-        return Double.valueOf(-(double)value);
+        // like a binary operator, a negation specializes itself to numbers, if that is what it first sees.
+        if (expr.specialization == Specialization.NUMBERS) {
+          try {
+            return -number(expr.right);
+          } catch (NotANumber notANumber) {
+            expr.specialization = Specialization.GENERIC;
+            return Operators.negate(expr.operator, notANumber.value);
+          }
+        }
+        Object value = evaluate(expr.right);
+        if (expr.specialization == Specialization.UNINITIALIZED) {
+          expr.specialization = (value instanceof Double) ? Specialization.NUMBERS : Specialization.GENERIC;
+        }
+        return Operators.negate(expr.operator, value);
       case TokenType.BANG:
-        // in Lox all objects are either truthy or falsey, so can negate value no matter what object it is.
-        return Boolean.valueOf(!isTruthy(value));
+        return Operators.not(evaluate(expr.right));
       default:
         break;
     }
@@ -500,106 +816,33 @@ class Interpreter implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
 
   @Override
   public Object visitDictionaryExpr(Expr.Dictionary expr) {
-    Map<Object, Object> dictionary = new HashMap<>();
+    LoxDictionary dictionary = new LoxDictionary();
     for (int i = 0; i < expr.dictionary.size() / 2; i++) {
       Object key = evaluate(expr.dictionary.get(2 * i));
       Object value = evaluate(expr.dictionary.get((2 * i) + 1));
       dictionary.put(key, value);
     }
-    return new LoxDictionary(dictionary);
+    return dictionary;
+  }
+  @Override
+  public Object visitInvariantExpr(Expr.Invariant expr) {
+    // worked out the first time, and then kept (see Hoister).
+    Object value = evaluate(expr.cache);
+    return value != null ? value : evaluate(expr.store);
   }
 
   @Override
   public Object visitSubscriptExpr(Expr.Subscript expr) {
     // parse subscriptee.
-    Object subscripteeObject = evaluate(expr.subscriptee);
-    if (!(subscripteeObject instanceof LoxArray) && !(subscripteeObject instanceof LoxDictionary)) {
-      throw new RuntimeError(expr.bracket, "Can only use subscript operator [] on arrays or dictionaries.");
-    }
-    if (subscripteeObject instanceof LoxArray) {
-      List<Object> list = ((LoxArray)subscripteeObject).list;
-
-      // parse index.
-      Object indexObject = evaluate(expr.index);
-      if (!(indexObject instanceof Double)) {
-        throw new RuntimeError(expr.bracket, "Can only use subscript operator [] with integers.");
-      }
-      Double index = (Double)indexObject;
-      if (Math.floor(index) != index) {
-        throw new RuntimeError(expr.bracket, "Can only use subscript operator [] with integers.");
-      }
-      if (index.intValue() < 0 || index.intValue() >= list.size()) {
-        throw new RuntimeError(expr.bracket, "Array index out of bounds.");
-      }
-      return list.get(index.intValue());
-    } else if (subscripteeObject instanceof LoxDictionary) {
-      Map<Object, Object> dictionary = ((LoxDictionary)subscripteeObject).dictionary;
-
-      // parse index.
-      Object index = evaluate(expr.index);
-      if (!dictionary.containsKey(index)) {
-        throw new RuntimeError(expr.bracket, "Dictionary does not contain given key.");
-      }
-      return dictionary.get(index);
-    }
+    Object subscriptee = evaluate(expr.subscriptee);
+    Operators.checkSubscriptable(expr.bracket, subscriptee);
 
-    // Control should not reach here...
-    throw new RuntimeError(expr.bracket, "Control should not reach here... Check if the thing that used [] on was an array or dictionary.");
-  }
-  /**
-   * Used for validating operands before an arithmetic unary operation.
-   * @throws RuntimeError When operand is not a Double.
-   */
-  private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double) return;
-    // although really it is a bad operand (e.g. a string when should be a number) that caused 
-    // the error (rather than a bad operator), telling the user that the string "abc" caused the error 
-    // doesn't really help the user find where the error happened in the source code,
-    // since that operand could have been used with any number of operators in the source code.
-    // so, specifying which operator it was that operated on the operand that caused the error 
-    // is meant to help the user find where the error happened in the source code.
-    throw new RuntimeError(operator, "Operand must be a number.");
-  }
-  /**
-   * Used for validating operands before an arithmetic binary operation.
-   * @throws RuntimeError When either operand is not a Double.
-   */
-  private void checkNumberOperand(Token operator, Object leftOperand, Object rightOperand) {
-    if ((leftOperand instanceof Double) && (rightOperand instanceof Double)) return;
-    throw new RuntimeError(operator, "Both operands must be numbers.");
-  }
-  /**
-   * In Lox all values -- in jLox represented as java.lang.Object objects -- have truthiness.
-   * @return if value is truthy.
-   */
-  private boolean isTruthy(Object value) {
-    if (value instanceof Boolean) {
-      Boolean booleanValue = (Boolean) value;
-      return booleanValue.booleanValue();
-    }
-    if (value == null) return false;
-    return true;
-  }
-  /**
-   * We don't want to show the user java's string representation of these java objects.
-   * Instead, we show the user lox's string representation of lox's values.
-   * @return Lox's string representation of the Lox value given.
-   */
-  String stringify(Object value) {
-    if (value == null) return "nil";
-    if (value instanceof Double) {
-      String string = value.toString();
-      if (string.endsWith(".0")) {
-        // though this Lox value is being stored in a java.lang.Double,
-        // the underlying value is really a Lox integer.
-        // to not confuse the user, pretend as if the value was stored in a java.lang.Integer.
-        return string.substring(0, string.length() - 2);
-      }
-    }
-    return value.toString();
+    // parse index.
+    Object index = evaluate(expr.index);
+    return Operators.getSubscript(expr.bracket, subscriptee, index);
   }
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  private Completion execute(Stmt stmt) {
+    return stmt.accept(this);
   }
   private Object evaluate(Expr expr) {
     return expr.accept(this);
@@ -0,0 +1,1024 @@
+package com.timfan.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles resolved statements into JVM bytecode, and runs them as a hidden class.
+ *
+ * each unit of statements given to interpret becomes one class (see CompiledUnit), with a static
+ * method for the top-level code and one for every function declaration and lambda inside it,
+ * so that HotSpot gets to see (and JIT compile) Lox functions as ordinary Java methods.
+ *
+ * a local variable lives in a JVM local variable of its function's method, unless some inner function
+ * refers to it. those captured variables live in the same Environment slots the Interpreter would use,
+ * but only the scopes that have a captured variable get an Environment at all.
+ *
+ * a global is looked up by name only once, when compiling, for its Environment.Global.
+ *
+ * calling a function that is known at compile time (a fun declared in this unit, called by name,
+ * with the right number of arguments) checks that the callee is still that function, and if so
+ * calls its method directly. every other call goes through LoxCallable.call, like in the Interpreter.
+ */
+class JvmCompiler implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  private static final String NAME = "com/timfan/lox/CompiledScript";
+  private static final String UNIT = "com/timfan/lox/CompiledUnit";
+  private static final String ENVIRONMENT = "com/timfan/lox/Environment";
+  private static final String FUNCTION = "com/timfan/lox/LoxFunction";
+  private static final String DECLARATION = "com/timfan/lox/Stmt$Function";
+  private static final String TOKEN = "com/timfan/lox/Token";
+  private static final String CALL_CACHE = "com/timfan/lox/CallCache";
+  private static final String GLOBAL = "com/timfan/lox/Environment$Global";
+  private static final String RUNTIME_ERROR = "com/timfan/lox/RuntimeError";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String OBJECT_D = "Ljava/lang/Object;";
+  private static final String TOKEN_D = "Lcom/timfan/lox/Token;";
+  private static final String CALL_CACHE_D = "Lcom/timfan/lox/CallCache;";
+  private static final String ENVIRONMENT_D = "Lcom/timfan/lox/Environment;";
+  private static final String UNIT_D = "Lcom/timfan/lox/CompiledUnit;";
+  private static final int MAX_PARAMETERS = 254; // a static method gets 255 slots, and one is the closure.
+
+  private final Interpreter interpreter;
+
+  /**
+   * What the analysis found out about one scope, a Block or a Function's body.
+   */
+  private static class Scope {
+    final Stmt.Function function; // the function whose body this scope is in, null for the top level.
+    final int size;
+    final boolean[] captured; // which slots are referred to by an inner function.
+    final Stmt.Function[] functions; // which slots were declared by a fun declaration, and what it was.
+    final int[] locals; // for the slots that are not captured, which JVM local variable holds them.
+    boolean hasEnvironment = false; // whether any slot is captured.
+    int environment = -1; // which JVM local variable holds this scope's Environment, if it has one.
+    int declared = 0;
+    Scope(Stmt.Function function, int size) {
+      this.function = function;
+      this.size = size;
+      captured = new boolean[size];
+      functions = new Stmt.Function[size];
+      locals = new int[size];
+    }
+  }
+
+  /**
+   * The method currently being compiled.
+   */
+  private static class Method {
+    final ClassAssembler.Method code;
+    final int firstScope; // index into scopes of this function's own outermost scope.
+    ClassAssembler.Label loopStart = null; // where continue goes.
+    ClassAssembler.Label loopEnd = null; // where break goes.
+    Method(ClassAssembler.Method code, int firstScope) {
+      this.code = code;
+      this.firstScope = firstScope;
+    }
+  }
+
+  // state for the unit currently being compiled.
+  private final Map<Object, Scope> scopeOf = new IdentityHashMap<>();
+  private final Map<Stmt.Function, Integer> indexOf = new IdentityHashMap<>();
+  private final List<Stmt.Function> functions = new ArrayList<>();
+  private final Map<String, Stmt.Function> globalFunctions = new HashMap<>();
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+  private final List<Scope> scopes = new ArrayList<>();
+  private ClassAssembler assembler;
+  private Method method;
+
+  JvmCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  void interpret(List<Stmt> statements) {
+    CompiledUnit unit;
+    try {
+      unit = compile(statements);
+    } catch (ClassAssembler.TooLarge error) {
+      // too big for the JVM to take as one class, leave this one to the Interpreter.
+      interpreter.interpret(statements);
+      return;
+    }
+    try {
+      unit.invoke(0, interpreter.globals, List.of());
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  private CompiledUnit compile(List<Stmt> statements) {
+    scopeOf.clear();
+    indexOf.clear();
+    functions.clear();
+    globalFunctions.clear();
+    constants.clear();
+    constantIndices.clear();
+    scopes.clear();
+    new Analysis().statements(statements);
+
+    assembler = new ClassAssembler(NAME, UNIT);
+    assembler.field(ClassAssembler.ACC_STATIC, "constants", "[" + OBJECT_D);
+    assembler.field(ClassAssembler.ACC_STATIC, "unit", UNIT_D);
+    constructor();
+    invoke();
+    method = new Method(assembler.method(ClassAssembler.ACC_STATIC, "script", descriptor(0)), 0);
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+    method.code.aconstNull();
+    method.code.areturn();
+    byte[] bytes = assembler.toByteArray();
+    assembler = null;
+    method = null;
+
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      return (CompiledUnit)lookup.findConstructor(lookup.lookupClass(),
+              MethodType.methodType(void.class, Interpreter.class, Object[].class))
+          .invoke(interpreter, constants.toArray());
+    } catch (Throwable error) {
+      throw new AssertionError("Could not load compiled class.", error);
+    }
+  }
+
+  /**
+   * The generated constructor keeps the unit and its constants in static fields,
+   * where every method of the class can get at them.
+   */
+  private void constructor() {
+    ClassAssembler.Method code = assembler.method(0, "<init>",
+        "(Lcom/timfan/lox/Interpreter;[" + OBJECT_D + ")V");
+    code.aload(0);
+    code.aload(1);
+    code.iconst(functions.size() + 1);
+    code.invokespecial(UNIT, "<init>", "(Lcom/timfan/lox/Interpreter;I)V");
+    code.aload(2);
+    code.putstatic(NAME, "constants", "[" + OBJECT_D);
+    code.aload(0);
+    code.putstatic(NAME, "unit", UNIT_D);
+    code.vreturn();
+  }
+
+  /**
+   * CompiledUnit.invoke, a switch over every function's method.
+   */
+  private void invoke() {
+    ClassAssembler.Method code = assembler.method(0, "invoke",
+        "(I" + ENVIRONMENT_D + "Ljava/util/List;)" + OBJECT_D);
+    ClassAssembler.Label[] labels = new ClassAssembler.Label[functions.size() + 1];
+    for (int i = 0; i < labels.length; i++) labels[i] = new ClassAssembler.Label();
+    ClassAssembler.Label otherwise = new ClassAssembler.Label();
+    code.iload(1);
+    code.tableswitch(0, labels, otherwise);
+    for (int i = 0; i < labels.length; i++) {
+      code.mark(labels[i]);
+      int arity = i == 0 ? 0 : functions.get(i - 1).params.size();
+      code.aload(2);
+      for (int j = 0; j < arity; j++) {
+        code.aload(3);
+        code.iconst(j);
+        code.invokeinterface("java/util/List", "get", "(I)" + OBJECT_D);
+      }
+      code.invokestatic(NAME, i == 0 ? "script" : methodName(functions.get(i - 1)), descriptor(arity));
+      code.areturn();
+    }
+    code.mark(otherwise);
+    code.aconstNull();
+    code.areturn();
+    for (int arity = 0; arity <= 3; arity++) {
+      invoke(arity);
+    }
+  }
+  /**
+   * CompiledUnit.invoke0 to invoke3, a switch over every function that takes arity arguments,
+   * which are passed straight on to its method.
+   */
+  private void invoke(int arity) {
+    ClassAssembler.Method code = assembler.method(0, "invoke" + arity,
+        "(I" + ENVIRONMENT_D + OBJECT_D.repeat(arity) + ")" + OBJECT_D);
+    ClassAssembler.Label[] labels = new ClassAssembler.Label[functions.size() + 1];
+    ClassAssembler.Label otherwise = new ClassAssembler.Label();
+    for (int i = 0; i < labels.length; i++) {
+      int params = i == 0 ? 0 : functions.get(i - 1).params.size();
+      labels[i] = params == arity ? new ClassAssembler.Label() : otherwise;
+    }
+    code.iload(1);
+    code.tableswitch(0, labels, otherwise);
+    for (int i = 0; i < labels.length; i++) {
+      if (labels[i] == otherwise) continue;
+      code.mark(labels[i]);
+      code.aload(2);
+      for (int j = 0; j < arity; j++) {
+        code.aload(3 + j);
+      }
+      code.invokestatic(NAME, i == 0 ? "script" : methodName(functions.get(i - 1)), descriptor(arity));
+      code.areturn();
+    }
+    code.mark(otherwise);
+    code.aconstNull();
+    code.areturn();
+  }
+
+  private static String descriptor(int arity) {
+    return "(" + ENVIRONMENT_D + OBJECT_D.repeat(arity) + ")" + OBJECT_D;
+  }
+  private String methodName(Stmt.Function function) {
+    // the Lox name is kept in the method name, for the sake of stack traces.
+    return function.identifier.lexeme + "$" + indexOf.get(function);
+  }
+
+  /**
+   * The first pass: works out every scope's captured slots, numbers every function,
+   * and remembers which top-level functions there are. Follows the Resolver's scopes exactly.
+   */
+  private class Analysis implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    private final List<Scope> scopes = new ArrayList<>();
+    private Stmt.Function function = null;
+
+    void statements(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        statement.accept(this);
+      }
+    }
+    private void function(Stmt.Function declaration) {
+      if (declaration.params.size() > MAX_PARAMETERS) {
+        throw new ClassAssembler.TooLarge("Too many parameters.");
+      }
+      functions.add(declaration);
+      indexOf.put(declaration, functions.size());
+      Stmt.Function enclosing = function;
+      function = declaration;
+      Scope scope = new Scope(declaration, declaration.size);
+      scope.declared = declaration.params.size();
+      scopeOf.put(declaration, scope);
+      scopes.add(scope);
+      statements(declaration.body);
+      scopes.remove(scopes.size() - 1);
+      function = enclosing;
+    }
+    private void reference(int depth, int slot) {
+      if (depth == Resolver.GLOBAL) return;
+      Scope scope = scopes.get(scopes.size() - 1 - depth);
+      if (scope.function != function) {
+        scope.captured[slot] = true;
+        scope.hasEnvironment = true;
+      }
+    }
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      Scope scope = new Scope(function, stmt.size);
+      scopeOf.put(stmt, scope);
+      scopes.add(scope);
+      statements(stmt.statements);
+      scopes.remove(scopes.size() - 1);
+      return null;
+    }
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      if (scopes.isEmpty()) {
+        globalFunctions.put(stmt.identifier.lexeme, stmt);
+      } else {
+        Scope scope = scopes.get(scopes.size() - 1);
+        scope.functions[scope.declared++] = stmt;
+      }
+      function(stmt);
+      return null;
+    }
+    @Override
+    public Void visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+      if (!scopes.isEmpty()) scopes.get(scopes.size() - 1).declared++;
+      if (stmt.initialiser != null) stmt.initialiser.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      stmt.expression.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      stmt.expression.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      stmt.condition.accept(this);
+      stmt.thenStmt.accept(this);
+      if (stmt.elseStmt != null) stmt.elseStmt.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      stmt.condition.accept(this);
+      stmt.body.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.value != null) stmt.value.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      return null;
+    }
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+      return null;
+    }
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      expr.callee.accept(this);
+      for (Expr argument : expr.arguments) argument.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr.expression.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr.right.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      reference(expr.depth, expr.slot);
+      return null;
+    }
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr.value.accept(this);
+      reference(expr.depth, expr.slot);
+      return null;
+    }
+    @Override
+    public Void visitLogicExpr(Expr.Logic expr) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+      for (Expr value : expr.values) value.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitSubscriptExpr(Expr.Subscript expr) {
+      expr.subscriptee.accept(this);
+      expr.index.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+      expr.subscriptee.accept(this);
+      expr.index.accept(this);
+      expr.value.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+      function(expr.function);
+      return null;
+    }
+    @Override
+    public Void visitDictionaryExpr(Expr.Dictionary expr) {
+      for (Expr value : expr.dictionary) value.accept(this);
+      return null;
+    }
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+      expr.store.value.accept(this);
+      return null;
+    }
+  }
+
+  // the second pass: code generation.
+
+  /**
+   * Pushes constants[index] of value, added to the constants on first use.
+   */
+  private void constant(Object value, String type) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+    method.code.getstatic(NAME, "constants", "[" + OBJECT_D);
+    method.code.iconst(index);
+    method.code.aaload();
+    if (type != null) method.code.checkcast(type);
+  }
+  private void token(Token token) {
+    constant(token, TOKEN);
+  }
+  private void unit() {
+    method.code.getstatic(NAME, "unit", UNIT_D);
+  }
+
+  /**
+   * Pushes the innermost Environment, what a new scope's Environment or a new function's closure has as parent.
+   */
+  private void currentEnvironment() {
+    for (int i = scopes.size() - 1; i >= method.firstScope; i--) {
+      if (scopes.get(i).hasEnvironment) {
+        method.code.aload(scopes.get(i).environment);
+        return;
+      }
+    }
+    method.code.aload(0); // the closure.
+  }
+  /**
+   * Begins the scope of node, first making its Environment if it needs one.
+   */
+  private Scope beginScope(Object node) {
+    Scope scope = scopeOf.get(node);
+    scope.declared = 0;
+    if (scope.hasEnvironment) {
+      ClassAssembler.Method code = method.code;
+      code.newObject(ENVIRONMENT);
+      code.dup();
+      currentEnvironment();
+      code.iconst(scope.size);
+      code.invokespecial(ENVIRONMENT, "<init>", "(" + ENVIRONMENT_D + "I)V");
+      scope.environment = code.newLocal();
+      code.astore(scope.environment);
+    }
+    scopes.add(scope);
+    return scope;
+  }
+  private void endScope() {
+    scopes.remove(scopes.size() - 1);
+  }
+  /**
+   * Pushes the Environment of scopes[index], which holds a captured variable.
+   */
+  private void environment(int index) {
+    if (index >= method.firstScope) {
+      method.code.aload(scopes.get(index).environment);
+      return;
+    }
+    // it belongs to an enclosing function, so walk up from the closure.
+    method.code.aload(0);
+    for (int i = index + 1; i < method.firstScope; i++) {
+      if (scopes.get(i).hasEnvironment) {
+        method.code.getfield(ENVIRONMENT, "parent", ENVIRONMENT_D);
+      }
+    }
+  }
+  /**
+   * Pops a value into the given slot of the innermost scope, where it is declared.
+   */
+  private void define(int slot) {
+    Scope scope = scopes.get(scopes.size() - 1);
+    ClassAssembler.Method code = method.code;
+    if (scope.captured[slot]) {
+      code.aload(scope.environment);
+      code.swap();
+      code.iconst(slot);
+      code.swap();
+      code.invokevirtual(ENVIRONMENT, "assignAt", "(I" + OBJECT_D + ")V");
+    } else {
+      scope.locals[slot] = code.newLocal();
+      code.astore(scope.locals[slot]);
+    }
+  }
+  private void load(Token identifier, int depth, int slot) {
+    ClassAssembler.Method code = method.code;
+    if (depth == Resolver.GLOBAL) {
+      constant(interpreter.globals.global(identifier.symbol), GLOBAL);
+      token(identifier);
+      code.invokevirtual(GLOBAL, "get", "(" + TOKEN_D + ")" + OBJECT_D);
+      return;
+    }
+    int index = scopes.size() - 1 - depth;
+    Scope scope = scopes.get(index);
+    if (scope.captured[slot]) {
+      environment(index);
+      code.iconst(slot);
+      code.invokevirtual(ENVIRONMENT, "getAt", "(I)" + OBJECT_D);
+    } else {
+      code.aload(scope.locals[slot]);
+    }
+  }
+  /**
+   * Stores the value on top of the stack, leaving it there.
+   */
+  private void store(Token identifier, int depth, int slot) {
+    ClassAssembler.Method code = method.code;
+    code.dup();
+    if (depth == Resolver.GLOBAL) {
+      constant(interpreter.globals.global(identifier.symbol), GLOBAL);
+      code.swap();
+      token(identifier);
+      code.swap();
+      code.invokevirtual(GLOBAL, "assign", "(" + TOKEN_D + OBJECT_D + ")V");
+      return;
+    }
+    int index = scopes.size() - 1 - depth;
+    Scope scope = scopes.get(index);
+    if (scope.captured[slot]) {
+      environment(index);
+      code.swap();
+      code.iconst(slot);
+      code.swap();
+      code.invokevirtual(ENVIRONMENT, "assignAt", "(I" + OBJECT_D + ")V");
+    } else {
+      code.astore(scope.locals[slot]);
+    }
+  }
+
+  /**
+   * Compiles the function's body into its own method, and pushes a new LoxFunction for it.
+   */
+  private void function(Stmt.Function declaration) {
+    Method enclosing = method;
+    int arity = declaration.params.size();
+    method = new Method(assembler.method(ClassAssembler.ACC_STATIC, methodName(declaration), descriptor(arity)),
+        scopes.size());
+    Scope scope = beginScope(declaration);
+    ClassAssembler.Method code = method.code;
+    for (int i = 0; i < arity; i++) {
+      // the arguments are the method's parameters, after the closure.
+      if (scope.captured[i]) {
+        code.aload(1 + i);
+        define(i);
+      } else {
+        scope.locals[i] = 1 + i;
+      }
+    }
+    scope.declared = arity;
+    for (Stmt statement : declaration.body) {
+      statement.accept(this);
+    }
+    code.aconstNull();
+    code.areturn();
+    endScope();
+    method = enclosing;
+
+    unit();
+    constant(declaration, DECLARATION);
+    currentEnvironment();
+    method.code.iconst(indexOf.get(declaration));
+    method.code.invokevirtual(UNIT, "function",
+        "(L" + DECLARATION + ";" + ENVIRONMENT_D + "I)L" + FUNCTION + ";");
+  }
+
+  private void evaluate(Expr expr) {
+    expr.accept(this);
+  }
+  /**
+   * Jumps to target if the condition's truthiness is when, otherwise falls through.
+   */
+  private void jump(Expr condition, boolean when, ClassAssembler.Label target) {
+    ClassAssembler.Method code = method.code;
+    if (condition instanceof Expr.Grouping) {
+      jump(((Expr.Grouping)condition).expression, when, target);
+      return;
+    }
+    if (condition instanceof Expr.Unary && ((Expr.Unary)condition).operator.type == TokenType.BANG) {
+      jump(((Expr.Unary)condition).right, !when, target);
+      return;
+    }
+    if (condition instanceof Expr.Logic) {
+      Expr.Logic logic = (Expr.Logic)condition;
+      // an and is only true if both sides are, and an or is only false if both sides are.
+      // so either side alone can decide an and is false, or an or is true.
+      boolean and = logic.operator.type == TokenType.AND;
+      if (when == and) {
+        ClassAssembler.Label skip = new ClassAssembler.Label();
+        jump(logic.left, !and, skip);
+        jump(logic.right, and, target);
+        code.mark(skip);
+      } else {
+        jump(logic.left, !and, target);
+        jump(logic.right, !and, target);
+      }
+      return;
+    }
+    if (!compare(condition)) {
+      evaluate(condition);
+      code.invokestatic("com/timfan/lox/Operators", "isTruthy", "(" + OBJECT_D + ")Z");
+    }
+    if (when) {
+      code.ifne(target);
+    } else {
+      code.ifeq(target);
+    }
+  }
+  /**
+   * If expr is a comparison, pushes its result as a boolean int.
+   * @return If it was a comparison.
+   */
+  private boolean compare(Expr expr) {
+    if (!(expr instanceof Expr.Binary)) return false;
+    Expr.Binary binary = (Expr.Binary)expr;
+    String helper;
+    switch (binary.operator.type) {
+      case TokenType.LESS: helper = "isLess"; break;
+      case TokenType.GREATER: helper = "isGreater"; break;
+      case TokenType.LESS_EQUAL: helper = "isLessEqual"; break;
+      case TokenType.GREATER_EQUAL: helper = "isGreaterEqual"; break;
+      case TokenType.EQUAL_EQUAL: helper = "isEqual"; break;
+      case TokenType.BANG_EQUAL: helper = "isNotEqual"; break;
+      default: return false;
+    }
+    evaluate(binary.left);
+    evaluate(binary.right);
+    token(binary.operator);
+    method.code.invokestatic(UNIT, helper, "(" + OBJECT_D + OBJECT_D + TOKEN_D + ")Z");
+    return true;
+  }
+  /**
+   * Pushes a new Object[] holding the values of exprs, evaluated in order.
+   */
+  private void values(List<Expr> exprs) {
+    ClassAssembler.Method code = method.code;
+    code.iconst(exprs.size());
+    code.anewarray(OBJECT);
+    for (int i = 0; i < exprs.size(); i++) {
+      code.dup();
+      code.iconst(i);
+      evaluate(exprs.get(i));
+      code.aastore();
+    }
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    evaluate(stmt.expression);
+    method.code.pop();
+    return null;
+  }
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    evaluate(stmt.expression);
+    method.code.invokestatic(UNIT, "print", "(" + OBJECT_D + ")V");
+    return null;
+  }
+  @Override
+  public Void visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    if (stmt.initialiser != null) {
+      evaluate(stmt.initialiser);
+    } else {
+      method.code.aconstNull();
+    }
+    if (scopes.isEmpty()) {
+      defineGlobal(stmt.identifier);
+    } else {
+      define(scopes.get(scopes.size() - 1).declared++);
+    }
+    return null;
+  }
+  private void defineGlobal(Token identifier) {
+    unit();
+    method.code.swap();
+    token(identifier);
+    method.code.invokevirtual(UNIT, "defineGlobal", "(" + OBJECT_D + TOKEN_D + ")V");
+  }
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // the function's slot is numbered before its body, as in the Resolver,
+    // but it only gets its value once the LoxFunction has been made.
+    int slot = scopes.isEmpty() ? -1 : scopes.get(scopes.size() - 1).declared++;
+    function(stmt);
+    if (slot < 0) {
+      defineGlobal(stmt.identifier);
+    } else {
+      define(slot);
+    }
+    return null;
+  }
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope(stmt);
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    endScope();
+    return null;
+  }
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    ClassAssembler.Label otherwise = new ClassAssembler.Label();
+    jump(stmt.condition, false, otherwise);
+    stmt.thenStmt.accept(this);
+    if (stmt.elseStmt != null) {
+      ClassAssembler.Label end = new ClassAssembler.Label();
+      method.code.goTo(end);
+      method.code.mark(otherwise);
+      stmt.elseStmt.accept(this);
+      method.code.mark(end);
+    } else {
+      method.code.mark(otherwise);
+    }
+    return null;
+  }
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    ClassAssembler.Label enclosingStart = method.loopStart;
+    ClassAssembler.Label enclosingEnd = method.loopEnd;
+    method.loopStart = new ClassAssembler.Label();
+    method.loopEnd = new ClassAssembler.Label();
+    method.code.mark(method.loopStart);
+    jump(stmt.condition, false, method.loopEnd);
+    stmt.body.accept(this);
+    method.code.goTo(method.loopStart);
+    method.code.mark(method.loopEnd);
+    method.loopStart = enclosingStart;
+    method.loopEnd = enclosingEnd;
+    return null;
+  }
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      // leave the call to whoever called this function (see CompiledUnit.tailCall).
+      Expr.Call call = (Expr.Call)stmt.value;
+      unit();
+      evaluate(call.callee);
+      values(call.arguments);
+      constant(CallCache.of(call), CALL_CACHE);
+      method.code.invokevirtual(UNIT, "tailCall", "(" + OBJECT_D + "[" + OBJECT_D + CALL_CACHE_D + ")" + OBJECT_D);
+    } else if (stmt.value != null) {
+      evaluate(stmt.value);
+    } else {
+      method.code.aconstNull();
+    }
+    method.code.areturn();
+    return null;
+  }
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    method.code.goTo(method.loopEnd);
+    return null;
+  }
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    method.code.goTo(method.loopStart);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (compare(expr)) {
+      method.code.invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+      return null;
+    }
+    String helper;
+    switch (expr.operator.type) {
+      case TokenType.PLUS: helper = "add"; break;
+      case TokenType.MINUS: helper = "subtract"; break;
+      case TokenType.STAR: helper = "multiply"; break;
+      case TokenType.SLASH: helper = "divide"; break;
+      default: throw new AssertionError("Unknown binary operator " + expr.operator.lexeme);
+    }
+    evaluate(expr.left);
+    evaluate(expr.right);
+    token(expr.operator);
+    method.code.invokestatic(UNIT, helper, "(" + OBJECT_D + OBJECT_D + TOKEN_D + ")" + OBJECT_D);
+    return null;
+  }
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    evaluate(expr.right);
+    if (expr.operator.type == TokenType.MINUS) {
+      token(expr.operator);
+      method.code.invokestatic(UNIT, "negate", "(" + OBJECT_D + TOKEN_D + ")" + OBJECT_D);
+    } else {
+      method.code.invokestatic("com/timfan/lox/Operators", "not", "(" + OBJECT_D + ")" + OBJECT_D);
+    }
+    return null;
+  }
+  @Override
+  public Void visitLogicExpr(Expr.Logic expr) {
+    ClassAssembler.Label isFalse = new ClassAssembler.Label();
+    ClassAssembler.Label end = new ClassAssembler.Label();
+    jump(expr, false, isFalse);
+    method.code.getstatic("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+    method.code.goTo(end);
+    method.code.mark(isFalse);
+    method.code.getstatic("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+    method.code.mark(end);
+    return null;
+  }
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    evaluate(expr.expression);
+    return null;
+  }
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      method.code.aconstNull();
+    } else if (expr.value instanceof Boolean) {
+      method.code.getstatic("java/lang/Boolean", (Boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+    } else if (expr.value instanceof String) {
+      method.code.ldcString((String)expr.value);
+    } else {
+      constant(expr.value, null);
+    }
+    return null;
+  }
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    load(expr.identifier, expr.depth, expr.slot);
+    return null;
+  }
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    evaluate(expr.value);
+    store(expr.identifier, expr.depth, expr.slot);
+    return null;
+  }
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    ClassAssembler.Method code = method.code;
+    Stmt.Function known = knownFunction(expr);
+    if (known == null) {
+      unit();
+      evaluate(expr.callee);
+      if (expr.arguments.size() <= 3) {
+        // (with no array for the arguments, see LoxCallable.)
+        for (Expr argument : expr.arguments) {
+          evaluate(argument);
+        }
+        constant(CallCache.of(expr), CALL_CACHE);
+        code.invokevirtual(UNIT, "call" + expr.arguments.size(),
+            "(" + OBJECT_D.repeat(expr.arguments.size() + 1) + CALL_CACHE_D + ")" + OBJECT_D);
+        return null;
+      }
+      values(expr.arguments);
+      constant(CallCache.of(expr), CALL_CACHE);
+      code.invokevirtual(UNIT, "call", "(" + OBJECT_D + "[" + OBJECT_D + CALL_CACHE_D + ")" + OBJECT_D);
+      return null;
+    }
+    // evaluate the callee and the arguments in order, and keep them aside.
+    int callee = code.newLocal();
+    evaluate(expr.callee);
+    code.astore(callee);
+    int[] arguments = new int[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = code.newLocal();
+      evaluate(expr.arguments.get(i));
+      code.astore(arguments[i]);
+    }
+    // is the callee still the function we expect it to be?
+    ClassAssembler.Label slow = new ClassAssembler.Label();
+    ClassAssembler.Label end = new ClassAssembler.Label();
+    code.aload(callee);
+    code.instanceOf(FUNCTION);
+    code.ifeq(slow);
+    code.aload(callee);
+    code.checkcast(FUNCTION);
+    code.getfield(FUNCTION, "declaration", "L" + DECLARATION + ";");
+    constant(known, null);
+    code.ifAcmpne(slow);
+    code.aload(callee);
+    code.checkcast(FUNCTION);
+    code.getfield(FUNCTION, "closure", ENVIRONMENT_D);
+    for (int argument : arguments) code.aload(argument);
+    // the call goes straight to the method, past CompiledUnit's call helpers, so catches running out of stack itself.
+    ClassAssembler.Label callStart = new ClassAssembler.Label();
+    ClassAssembler.Label callEnd = new ClassAssembler.Label();
+    ClassAssembler.Label overflow = new ClassAssembler.Label();
+    code.mark(callStart);
+    code.invokestatic(NAME, methodName(known), descriptor(arguments.length));
+    if (hasTailCall(known.body)) {
+      // and makes the tail call the function might have ended with, as LoxFunction.call would have.
+      unit();
+      code.swap();
+      code.invokevirtual(UNIT, "finish", "(" + OBJECT_D + ")" + OBJECT_D);
+    }
+    code.mark(callEnd);
+    code.tryCatch(callStart, callEnd, overflow, "java/lang/StackOverflowError");
+    code.goTo(end);
+    code.mark(overflow);
+    code.pop();
+    token(expr.paren);
+    code.invokestatic(UNIT, "stackOverflow", "(" + TOKEN_D + ")L" + RUNTIME_ERROR + ";");
+    code.athrow();
+    code.mark(slow);
+    unit();
+    code.aload(callee);
+    if (arguments.length <= 3) {
+      for (int argument : arguments) code.aload(argument);
+      constant(CallCache.of(expr), CALL_CACHE);
+      code.invokevirtual(UNIT, "call" + arguments.length,
+          "(" + OBJECT_D.repeat(arguments.length + 1) + CALL_CACHE_D + ")" + OBJECT_D);
+      code.mark(end);
+      return null;
+    }
+    code.iconst(arguments.length);
+    code.anewarray(OBJECT);
+    for (int i = 0; i < arguments.length; i++) {
+      code.dup();
+      code.iconst(i);
+      code.aload(arguments[i]);
+      code.aastore();
+    }
+    constant(CallCache.of(expr), CALL_CACHE);
+    code.invokevirtual(UNIT, "call", "(" + OBJECT_D + "[" + OBJECT_D + CALL_CACHE_D + ")" + OBJECT_D);
+    code.mark(end);
+    return null;
+  }
+  /**
+   * @return Whether any of statements (but not those of the functions declared in them) is a tail call,
+   * which is the only way the method of the function they are the body of can return a Completion.
+   */
+  private static boolean hasTailCall(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (hasTailCall(statement)) return true;
+    }
+    return false;
+  }
+  private static boolean hasTailCall(Stmt stmt) {
+    if (stmt instanceof Stmt.Return) return ((Stmt.Return)stmt).tailCall;
+    if (stmt instanceof Stmt.Block) return hasTailCall(((Stmt.Block)stmt).statements);
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      return hasTailCall(ifStmt.thenStmt) || (ifStmt.elseStmt != null && hasTailCall(ifStmt.elseStmt));
+    }
+    if (stmt instanceof Stmt.While) return hasTailCall(((Stmt.While)stmt).body);
+    return false;
+  }
+  /**
+   * @return The function declared in this unit that the call is (probably) to, or null if there is none.
+   */
+  private Stmt.Function knownFunction(Expr.Call expr) {
+    if (!(expr.callee instanceof Expr.Variable)) return null;
+    Expr.Variable variable = (Expr.Variable)expr.callee;
+    Stmt.Function function;
+    if (variable.depth == Resolver.GLOBAL) {
+      function = globalFunctions.get(variable.identifier.lexeme);
+    } else {
+      function = scopes.get(scopes.size() - 1 - variable.depth).functions[variable.slot];
+    }
+    if (function == null || function.params.size() != expr.arguments.size()) return null;
+    return function;
+  }
+  @Override
+  public Void visitArrayExpr(Expr.Array expr) {
+    values(expr.values);
+    method.code.invokestatic(UNIT, "array", "([" + OBJECT_D + ")" + OBJECT_D);
+    return null;
+  }
+  @Override
+  public Void visitDictionaryExpr(Expr.Dictionary expr) {
+    values(expr.dictionary);
+    method.code.invokestatic(UNIT, "dictionary", "([" + OBJECT_D + ")" + OBJECT_D);
+    return null;
+  }
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    // the JIT can hoist what is worth hoisting itself, so the expression is just worked out every time.
+    evaluate(expr.store.value);
+    return null;
+  }
+  @Override
+  public Void visitSubscriptExpr(Expr.Subscript expr) {
+    evaluate(expr.subscriptee);
+    token(expr.bracket);
+    method.code.invokestatic(UNIT, "checkSubscriptable", "(" + OBJECT_D + TOKEN_D + ")" + OBJECT_D);
+    evaluate(expr.index);
+    token(expr.bracket);
+    method.code.invokestatic(UNIT, "getSubscript", "(" + OBJECT_D + OBJECT_D + TOKEN_D + ")" + OBJECT_D);
+    return null;
+  }
+  @Override
+  public Void visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    ClassAssembler.Method code = method.code;
+    evaluate(expr.subscriptee);
+    token(expr.bracket);
+    code.invokestatic(UNIT, "checkSubscriptable", "(" + OBJECT_D + TOKEN_D + ")" + OBJECT_D);
+    evaluate(expr.index);
+    code.dup2();
+    token(expr.bracket);
+    code.invokestatic(UNIT, "checkSubscriptIndex", "(" + OBJECT_D + OBJECT_D + TOKEN_D + ")V");
+    evaluate(expr.value);
+    token(expr.bracket);
+    code.invokestatic(UNIT, "setSubscript", "(" + OBJECT_D + OBJECT_D + OBJECT_D + TOKEN_D + ")" + OBJECT_D);
+    return null;
+  }
+  @Override
+  public Void visitLambdaExpr(Expr.Lambda expr) {
+    function(expr.function);
+    return null;
+  }
+}
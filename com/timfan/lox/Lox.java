@@ -8,7 +8,17 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
+import com.timfan.lox.vm.VM;
+
 public class Lox {
+  /**
+   * Which engine runs the program once it has been scanned, parsed, and resolved.
+   */
+  private enum Engine {
+    AST, // the tree-walk Interpreter, visiting the statements or (with --engine=closure) compiled into closures.
+    VM,  // the bytecode compiler and VM in com.timfan.lox.vm.
+    JVM  // JvmCompiler, which compiles to JVM bytecode and lets HotSpot run it.
+  }
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
   static Interpreter interpreter = new Interpreter(); // for runPrompt, rather than make a new interpreter every loop 
@@ -16,19 +26,67 @@ public class Lox {
                                                       // we instead make it on Lox bootup, which also allows for global variables 
                                                       // to be used in runPrompt (instead of all variables expiring 
                                                       // at the end of each loop).
+  static Engine engine = Engine.AST;
+  static VM vm; // made on Lox bootup too, if the VM engine is chosen, sharing the interpreter's globals.
+  static JvmCompiler jvm; // likewise, if the JVM engine is chosen.
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64); 
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    String script = null;
+    String name = "ast";
+    int maxDepth = VM.DEFAULT_MAX_DEPTH; // only the VM keeps its calls off the Java stack, and so can be told how many to allow.
+    boolean hasMaxDepth = false;
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        name = arg.substring("--engine=".length());
+      } else if (arg.startsWith("--max-depth=")) {
+        try {
+          maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+        } catch (NumberFormatException e) {
+          usage();
+        }
+        if (maxDepth < 1) usage();
+        hasMaxDepth = true;
+      } else if (arg.equals("--call-stats")) {
+        CallCache.record();
+      } else if (arg.startsWith("--") || script != null) {
+        usage();
+      } else {
+        script = arg;
+      }
+    }
+    if (name.equals("ast")) {
+      engine = Engine.AST;
+    } else if (name.equals("closure")) {
+      engine = Engine.AST;
+      interpreter.compileToClosures();
+    } else if (name.equals("vm")) {
+      engine = Engine.VM;
+      vm = new VM(interpreter, maxDepth);
+    } else if (name.equals("jvm")) {
+      engine = Engine.JVM;
+      jvm = new JvmCompiler(interpreter);
+    } else {
+      usage();
+    }
+    if (hasMaxDepth && engine != Engine.VM) {
+      // the other engines' calls go on the Java stack, which only the JVM's -Xss can make deeper.
+      System.out.println("--max-depth only applies to --engine=vm.");
+      usage();
+    }
+    if (script != null) {
+      runFile(script);
     } else {
       runPrompt();
     }
   }
+  private static void usage() {
+    System.out.println("Usage: jlox [--engine=ast|closure|jvm | --engine=vm [--max-depth=n]] [--call-stats] [script]");
+    System.exit(64); 
+  }
   private static void runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
     run(new String(bytes, Charset.defaultCharset()));
+    // how often each call site called the same function as last time (see CallCache), with --call-stats.
+    CallCache.report(System.err);
     if (hadError) System.exit(65);
     if (hadRuntimeError) System.exit(70);
   }
@@ -48,11 +106,26 @@ public class Lox {
     List<Token> tokens = new Scanner(source).scanTokens();
     List<Stmt> statements = new Parser(tokens).parse();
     if (hadError) return;
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
     if (hadError) return;
+    // with every variable resolved, the tree can be simplified without changing what it does.
+    statements = new Optimizer().optimize(statements);
+    new Hoister(interpreter).hoist(statements);
+    statements = new SubexpressionEliminator().eliminate(statements);
+    new Inliner().inline(statements);
     // all syntax is good, no scanning errors or parsing errors reported. 
-    interpreter.interpret(statements);
+    switch (engine) {
+      case Engine.AST:
+        interpreter.interpret(statements);
+        break;
+      case Engine.VM:
+        vm.interpret(statements);
+        break;
+      case Engine.JVM:
+        jvm.interpret(statements);
+        break;
+    }
   }
   private static void report(int line, String where, String message) {
     System.err.println("[line " + line + "] Error" + where + ": " + message);
@@ -61,7 +134,7 @@ public class Lox {
   /**
    * Used by Interpreter to report to Lox that there were RuntimeErrors.
    */
-  static void runtimeError(RuntimeError error) {
+  public static void runtimeError(RuntimeError error) {
     System.err.println(error.getMessage() +
         "\n[line " + error.token.line + "]");
     hadRuntimeError = true;
@@ -1,9 +1,285 @@
 package com.timfan.lox;
 import java.util.List;
-public class LoxArray {
-  public List<Object> list;
-  LoxArray(List<Object> list) {
-    this.list = list;
+/**
+ * An array, whose values are kept in a 32-way trie with a tail (the last, partly filled, leaf kept
+ * out of the trie), so that a + b can share all of a's values with a rather than copying them,
+ * and only has to add each of b's values onto the end, which is cheap with the tail.
+ *
+ * arrays can still be assigned into (a[i] = v), and everything referring to the array sees the change.
+ * so each array has an owner, and a node of the trie (or its tail) can only be changed in place by the
+ * array that owns it. anything else, like a node it shares with another array since a + b,
+ * is copied (along with the nodes above it) the first time the array changes it.
+ *
+ * the leaf last used is kept at hand, as the focus, so that going through the values in order,
+ * as a loop does, only has to walk down the trie once for every 32 of them.
+ *
+ * while every value in an array is a number, its leaves (and tail) are double[]s rather than Object[]s,
+ * so the numbers aren't each boxed in a Double of their own. the first time anything other than a number
+ * is put into it, the array is rebuilt with Object[] leaves, and stays that way.
+ */
+public final class LoxArray {
+  private static final int BITS = 5;
+  private static final int WIDTH = 1 << BITS;
+  private static final int MASK = WIDTH - 1;
+
+  private static final class Node {
+    final Object owner; // the owner of the array that is allowed to change array in place, if any.
+    final Object[] array; // the child nodes, or for a leaf, the values,
+    final double[] numbers; // unless it is a leaf of numbers.
+    final int start; // for a leaf, the index of its first value (the same in every array that shares it).
+    Node(Object owner, Object[] array, double[] numbers, int start) {
+      this.owner = owner;
+      this.array = array;
+      this.numbers = numbers;
+      this.start = start;
+    }
+    Node copy(Object owner) {
+      return new Node(owner, array == null ? null : array.clone(), numbers == null ? null : numbers.clone(), start);
+    }
+  }
+  private static final Node EMPTY = new Node(null, new Object[WIDTH], null, 0);
+
+  private Object owner = new Object();
+  private boolean isNumbers = true;
+  private int size = 0;
+  private int shift = BITS; // how many bits of an index are below the root.
+  private Node root = EMPTY;
+  private Object[] tail = null;
+  private double[] numberTail = new double[WIDTH];
+  private boolean ownsTail = true;
+  private int tailStart = 0; // the index of the first value in the tail.
+  private Node focus = null; // the leaf last used.
+
+  public LoxArray() {}
+  public LoxArray(List<Object> list) {
+    for (Object value : list) {
+      add(value);
+    }
+  }
+  public int size() {
+    return size;
+  }
+  /**
+   * @return Whether every value in the array is a number, so getNumber, setNumber and addNumber can be used.
+   */
+  public boolean isNumbers() {
+    return isNumbers;
+  }
+  /**
+   * @return The value at index, which has to be within bounds.
+   */
+  public Object get(int index) {
+    if (isNumbers) return getNumber(index);
+    if (index >= tailStart) return tail[index & MASK];
+    return focus(index).array[index & MASK];
+  }
+  /**
+   * @return The number at index, of an array of numbers.
+   */
+  public double getNumber(int index) {
+    if (index >= tailStart) return numberTail[index & MASK];
+    return focus(index).numbers[index & MASK];
+  }
+  /**
+   * Changes the value at index, which has to be within bounds.
+   */
+  public void set(int index, Object value) {
+    if (isNumbers) {
+      if (value instanceof Double) {
+        setNumber(index, (double)value);
+        return;
+      }
+      generalise();
+    }
+    if (index >= tailStart) {
+      editableTail();
+      tail[index & MASK] = value;
+      return;
+    }
+    editableFocus(index).array[index & MASK] = value;
+  }
+  /**
+   * Changes the number at index, of an array of numbers.
+   */
+  public void setNumber(int index, double value) {
+    if (index >= tailStart) {
+      editableTail();
+      numberTail[index & MASK] = value;
+      return;
+    }
+    editableFocus(index).numbers[index & MASK] = value;
+  }
+  /**
+   * @return The leaf with index in it, which is made the focus.
+   * (the focus is a single field, so that arrays can be read from by more than one thread at once.)
+   */
+  private Node focus(int index) {
+    Node node = focus;
+    if (node != null && node.start == (index & ~MASK)) return node;
+    node = root;
+    for (int level = shift; level > 0; level -= BITS) {
+      node = (Node)node.array[(index >>> level) & MASK];
+    }
+    focus = node;
+    return node;
+  }
+  /**
+   * @return The leaf with index in it, as the focus, once this array can change it in place.
+   */
+  private Node editableFocus(int index) {
+    Node leaf = focus;
+    if (leaf != null && leaf.start == (index & ~MASK) && leaf.owner == owner) return leaf;
+    root = editable(root);
+    Node node = root;
+    for (int level = shift; level > 0; level -= BITS) {
+      int child = (index >>> level) & MASK;
+      node.array[child] = editable((Node)node.array[child]);
+      node = (Node)node.array[child];
+    }
+    focus = node;
+    return node;
+  }
+  /**
+   * Adds value onto the end.
+   */
+  public void add(Object value) {
+    if (isNumbers) {
+      if (value instanceof Double) {
+        addNumber((double)value);
+        return;
+      }
+      generalise();
+    }
+    if (size - tailStart == WIDTH) pushTail();
+    editableTail();
+    tail[size - tailStart] = value;
+    size++;
+  }
+  /**
+   * Adds value onto the end of an array of numbers.
+   */
+  public void addNumber(double value) {
+    if (size - tailStart == WIDTH) pushTail();
+    editableTail();
+    numberTail[size - tailStart] = value;
+    size++;
+  }
+  /**
+   * @return A new array, with left's values and then right's, leaving both as they are.
+   */
+  public static LoxArray concatenate(LoxArray left, LoxArray right) {
+    LoxArray result = left.share();
+    if (result.isNumbers && right.isNumbers) {
+      for (int i = 0; i < right.size; i++) {
+        result.addNumber(right.getNumber(i));
+      }
+    } else {
+      for (int i = 0; i < right.size; i++) {
+        result.add(right.get(i));
+      }
+    }
+    return result;
+  }
+  /**
+   * @return A new array with the same values, that shares all of its nodes with this one.
+   */
+  private LoxArray share() {
+    LoxArray shared = new LoxArray();
+    shared.isNumbers = isNumbers;
+    shared.size = size;
+    shared.shift = shift;
+    shared.root = root;
+    shared.tail = tail;
+    shared.numberTail = numberTail;
+    shared.ownsTail = false;
+    shared.tailStart = tailStart;
+    // neither array can change the nodes they now share in place any more.
+    owner = new Object();
+    ownsTail = false;
+    return shared;
+  }
+  /**
+   * Rebuilds an array of numbers with Object[] leaves, so it can hold anything.
+   */
+  private void generalise() {
+    Object[] values = new Object[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = getNumber(i);
+    }
+    // (the old nodes might still be shared with other arrays, so are left as they are.)
+    isNumbers = false;
+    size = 0;
+    shift = BITS;
+    root = EMPTY;
+    tail = new Object[WIDTH];
+    numberTail = null;
+    ownsTail = true;
+    tailStart = 0;
+    focus = null;
+    for (Object value : values) {
+      add(value);
+    }
+  }
+  private void editableTail() {
+    if (ownsTail) return;
+    if (isNumbers) {
+      numberTail = numberTail.clone();
+    } else {
+      tail = tail.clone();
+    }
+    ownsTail = true;
+  }
+  /**
+   * Puts the full tail into the trie, and starts a new one.
+   */
+  private void pushTail() {
+    Node leaf = new Node(ownsTail ? owner : null, tail, numberTail, tailStart);
+    if ((size >>> BITS) > (1 << shift)) {
+      // the trie is full too, so it gets a new root above it.
+      Node above = new Node(owner, new Object[WIDTH], null, 0);
+      above.array[0] = root;
+      above.array[1] = path(shift, leaf);
+      root = above;
+      shift += BITS;
+    } else {
+      root = pushLeaf(shift, editable(root), leaf);
+    }
+    if (isNumbers) {
+      numberTail = new double[WIDTH];
+    } else {
+      tail = new Object[WIDTH];
+    }
+    ownsTail = true;
+    tailStart = size;
+  }
+  /**
+   * @return node, if this array can change it in place, otherwise a copy of it that it can.
+   */
+  private Node editable(Node node) {
+    return node.owner == owner ? node : node.copy(owner);
+  }
+  /**
+   * @return parent (already editable), with leaf added as the next leaf below it.
+   */
+  private Node pushLeaf(int level, Node parent, Node leaf) {
+    int child = ((size - 1) >>> level) & MASK;
+    if (level == BITS) {
+      parent.array[child] = leaf;
+    } else if (parent.array[child] != null) {
+      parent.array[child] = pushLeaf(level - BITS, editable((Node)parent.array[child]), leaf);
+    } else {
+      parent.array[child] = path(level - BITS, leaf);
+    }
+    return parent;
+  }
+  /**
+   * @return A chain of new nodes, level bits high, down to leaf.
+   */
+  private Node path(int level, Node leaf) {
+    if (level == 0) return leaf;
+    Node node = new Node(owner, new Object[WIDTH], null, 0);
+    node.array[0] = path(level - BITS, leaf);
+    return node;
   }
   @Override
   public String toString() {
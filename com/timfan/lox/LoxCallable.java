@@ -1,12 +1,40 @@
 package com.timfan.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * LoxCallable
+ *
+ * call takes any number of arguments, in a List. but most calls have 3 or fewer, and so can be made with
+ * call0 to call3 instead, which don't need a List made for every call, as long as the callable
+ * (like LoxFunction and LoxNative) overrides them. otherwise they just put their arguments into a List for call.
+ * either way, a callable is only ever called with as many arguments as its arity.
  */
-interface LoxCallable {
+public interface LoxCallable {
   int arity();
   Object call(Interpreter interpreter, List<Object> arguments);
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, Arrays.asList());
+  }
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, Arrays.asList(a));
+  }
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, Arrays.asList(a, b));
+  }
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, Arrays.asList(a, b, c));
+  }
+  /**
+   * @return Whether calling this with the same arguments always gives back the same result,
+   * without doing anything else (see Stmt.Function.pure).
+   */
+  default boolean isPure() { return false; }
+  /**
+   * @return The global this calls itself by, if it is only pure for as long as that global
+   * still holds it (which any later line could change), otherwise null.
+   */
+  default Token ownGlobal() { return null; }
   String toString();  
 }
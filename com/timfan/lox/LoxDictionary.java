@@ -1,9 +1,148 @@
 package com.timfan.lox;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Objects;
+/**
+ * A dictionary, kept as a hash table of the same shape as CPython's compact dict: the entries are kept
+ * densely, in the order they were put in, and the table that is probed only holds each entry's index
+ * (open addressing, going on to the next slot until the key or an empty slot is found).
+ * so a read is a single probe, with no node object per entry.
+ *
+ * a key that is a number is kept as a double, rather than as its Double, and a number key
+ * is found by comparing doubles, with the same equality as Double.equals (so -0 and 0 are different keys,
+ * and NaN is a key like any other).
+ *
+ * a key that is a LoxRope is flattened, and kept as its String, so that it is the same key
+ * as any other string with the same characters.
+ *
+ * nothing is ever taken out of a dictionary, so there are no deleted entries to skip.
+ */
 public class LoxDictionary {
-  public Map<Object,Object> dictionary;
-  LoxDictionary(Map<Object, Object> dictionary) {
-    this.dictionary = dictionary;
+  /**
+   * What get gives for a key the dictionary doesn't have (as nil is a value it could have).
+   */
+  public static final Object ABSENT = new Object();
+  private static final Object NUMBER = new Object(); // the key of an entry whose key is in numberKeys.
+
+  private int[] table = new int[8]; // each entry's index + 1, or 0 for an empty slot.
+  private int[] hashes = new int[5];
+  private Object[] keys = new Object[5];
+  private double[] numberKeys = null; // only made once there is a number key.
+  private Object[] values = new Object[5];
+  private int size = 0;
+
+  public int size() {
+    return size;
+  }
+  /**
+   * @return The value for key, or ABSENT.
+   */
+  public Object get(Object key) {
+    if (key instanceof Double) return get((double)key);
+    if (key instanceof LoxRope) key = key.toString();
+    int entry = find(key, hash(key));
+    return entry < 0 ? ABSENT : values[entry];
+  }
+  public Object get(double key) {
+    int entry = find(key, hash(key));
+    return entry < 0 ? ABSENT : values[entry];
+  }
+  public void put(Object key, Object value) {
+    if (key instanceof Double) {
+      put((double)key, value);
+      return;
+    }
+    if (key instanceof LoxRope) key = key.toString();
+    int hash = hash(key);
+    int entry = find(key, hash);
+    if (entry >= 0) {
+      values[entry] = value;
+      return;
+    }
+    add(hash, key, value);
+  }
+  public void put(double key, Object value) {
+    int hash = hash(key);
+    int entry = find(key, hash);
+    if (entry >= 0) {
+      values[entry] = value;
+      return;
+    }
+    if (numberKeys == null) numberKeys = new double[keys.length];
+    numberKeys[size] = key;
+    add(hash, NUMBER, value);
+  }
+  private static int hash(Object key) {
+    return spread(Objects.hashCode(key));
+  }
+  private static int hash(double key) {
+    return spread(Double.hashCode(key));
+  }
+  /**
+   * Mixes the bits of hash, so that all of them end up affecting the slot
+   * (e.g., the hash of a small whole number has only 0s in its low bits).
+   */
+  private static int spread(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+  /**
+   * @return The index of key's entry, or -1.
+   */
+  private int find(Object key, int hash) {
+    int mask = table.length - 1;
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int entry = table[slot] - 1;
+      if (entry < 0) return -1;
+      if (hashes[entry] == hash && keys[entry] != NUMBER && Objects.equals(keys[entry], key)) return entry;
+    }
+  }
+  private int find(double key, int hash) {
+    long bits = Double.doubleToLongBits(key);
+    int mask = table.length - 1;
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int entry = table[slot] - 1;
+      if (entry < 0) return -1;
+      if (hashes[entry] == hash && keys[entry] == NUMBER && Double.doubleToLongBits(numberKeys[entry]) == bits) return entry;
+    }
+  }
+  /**
+   * Adds a new entry (whose number key, if it has one, is already in numberKeys).
+   */
+  private void add(int hash, Object key, Object value) {
+    hashes[size] = hash;
+    keys[size] = key;
+    values[size] = value;
+    insert(hash, size);
+    size++;
+    if (size == keys.length) grow();
+  }
+  private void insert(int hash, int entry) {
+    int mask = table.length - 1;
+    int slot = hash & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = entry + 1;
+  }
+  /**
+   * Makes room for more entries, keeping the table at most two thirds full.
+   */
+  private void grow() {
+    int capacity = keys.length * 2;
+    hashes = Arrays.copyOf(hashes, capacity);
+    keys = Arrays.copyOf(keys, capacity);
+    values = Arrays.copyOf(values, capacity);
+    if (numberKeys != null) numberKeys = Arrays.copyOf(numberKeys, capacity);
+    int slots = table.length;
+    while (slots * 2 < capacity * 3) {
+      slots *= 2;
+    }
+    if (slots != table.length) {
+      table = new int[slots];
+      for (int entry = 0; entry < size; entry++) {
+        insert(hashes[entry], entry);
+      }
+    }
   }
   @Override
   public String toString() {
@@ -1,10 +1,11 @@
 package com.timfan.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-  private final Stmt.Function declaration;
-  private final Environment closure; // which environment does this function declaration belong to?
+  final Stmt.Function declaration;
+  final Environment closure; // which environment does this function declaration belong to?
                                      // what environment closes over this function declaration?
                                      // because, if this function declaration's body code relies on 
                                      // definitions contained within that environment, the environment 
@@ -14,27 +15,116 @@ class LoxFunction implements LoxCallable {
                                      // to work properly, it would need a reference to that environment 
                                      // that closes over it to work properly, it would need a reference 
                                      // to its closure.
+  private final Body body; // null when declaration.body is to be interpreted.
+  /**
+   * A function body that one of the engines has compiled ahead of time, rather than interpreting
+   * the declaration's statements on every call.
+   * it gives back either the returned value, or a TAIL_CALL Completion for call to make next.
+   * (call0 to call3 are for calls with that many arguments, as in LoxCallable.)
+   */
+  interface Body {
+    Object call(Environment closure, List<Object> arguments);
+    default Object call0(Environment closure) {
+      return call(closure, Arrays.asList());
+    }
+    default Object call1(Environment closure, Object a) {
+      return call(closure, Arrays.asList(a));
+    }
+    default Object call2(Environment closure, Object a, Object b) {
+      return call(closure, Arrays.asList(a, b));
+    }
+    default Object call3(Environment closure, Object a, Object b, Object c) {
+      return call(closure, Arrays.asList(a, b, c));
+    }
+  }
   LoxFunction(Stmt.Function declaration, Environment closure) {
+    this(declaration, closure, null);
+  }
+  LoxFunction(Stmt.Function declaration, Environment closure, Body body) {
     this.declaration = declaration;
     this.closure = closure;
+    this.body = body;
   }
   @Override
   public int arity() {
     return declaration.params.size();
   }
   @Override
+  public boolean isPure() {
+    return declaration.pure;
+  }
+  @Override
+  public Token ownGlobal() {
+    return declaration.callsOwnGlobal ? declaration.identifier : null;
+  }
+  @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment local = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++) {
-      local.define(declaration.params.get(i).lexeme, arguments.get(i));
+    return finish(interpreter, run(interpreter, arguments));
+  }
+  // calls with up to 3 arguments define them straight into the new environment (or pass them straight
+  // on to the body), so that no List has to be made for them.
+  @Override
+  public Object call0(Interpreter interpreter) {
+    if (body != null) return finish(interpreter, body.call0(closure));
+    return finish(interpreter, execute(interpreter, new Environment(closure, declaration.size)));
+  }
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    if (body != null) return finish(interpreter, body.call1(closure, a));
+    Environment local = new Environment(closure, declaration.size);
+    local.define(declaration.params.get(0), a);
+    return finish(interpreter, execute(interpreter, local));
+  }
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    if (body != null) return finish(interpreter, body.call2(closure, a, b));
+    Environment local = new Environment(closure, declaration.size);
+    local.define(declaration.params.get(0), a);
+    local.define(declaration.params.get(1), b);
+    return finish(interpreter, execute(interpreter, local));
+  }
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    if (body != null) return finish(interpreter, body.call3(closure, a, b, c));
+    Environment local = new Environment(closure, declaration.size);
+    local.define(declaration.params.get(0), a);
+    local.define(declaration.params.get(1), b);
+    local.define(declaration.params.get(2), c);
+    return finish(interpreter, execute(interpreter, local));
+  }
+  /**
+   * @return result, once the tail call it might be has been made.
+   */
+  static Object finish(Interpreter interpreter, Object result) {
+    // a function that ends by returning the result of another call leaves that call to us.
+    // making it here, in a loop, rather than from inside the function, means that
+    // any number of tail calls in a row only ever take up the one Java stack frame.
+    while (result instanceof Completion) {
+      Completion tailCall = (Completion)result;
+      result = tailCall.callee.run(interpreter, tailCall.arguments);
     }
-    try {
-      interpreter.executeBlock(declaration.body, local);
-    } catch (Return returnException) {
-      return returnException.value;
+    return result;
+  }
+  /**
+   * Runs this function's body once, without making the tail call it might end with.
+   */
+  private Object run(Interpreter interpreter, List<Object> arguments) {
+    if (body != null) return body.call(closure, arguments);
+    Environment local = new Environment(closure, declaration.size);
+    for (int i = 0; i < declaration.params.size(); i++) {
+      local.define(declaration.params.get(i), arguments.get(i));
     }
-    // function call finished without any explicit return statement.
-    return null;
+    return execute(interpreter, local);
+  }
+  /**
+   * Interprets the declaration's body in local, which has the parameters defined in it.
+   */
+  private Object execute(Interpreter interpreter, Environment local) {
+    // the body's completion is either a RETURN, with the returned value,
+    // or NORMAL, when the call finished without any explicit return statement, which returns nil,
+    // or a TAIL_CALL, which the caller makes.
+    Completion completion = interpreter.executeBlock(declaration.body, local);
+    return completion.kind == Completion.Kind.TAIL_CALL ? completion : completion.value;
   }
   @Override
   public String toString() {
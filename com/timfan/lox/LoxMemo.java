@@ -0,0 +1,91 @@
+package com.timfan.lox;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * A function made by memo(function, size), which remembers what function gave back for the arguments
+ * of its last size calls, so that calling it with any of them again gives back the same result
+ * without calling function at all, e.g. for
+ *
+ * fib = memo(fib, 1000);
+ *
+ * fib's own calls to fib now go through the memo too, so each fib(n) is only ever worked out once.
+ *
+ * that only makes no difference to what the program does when function is pure (see isPure below),
+ * and when the arguments and result can't be changed in between calls (numbers, strings, booleans and nil),
+ * so those are the only calls remembered. any other call is just passed on to function.
+ *
+ * once size results are remembered, the one least recently used is forgotten to make room.
+ */
+public class LoxMemo implements LoxCallable {
+  private final LoxCallable function;
+  private final Map<List<Object>, Object> results;
+  private long hits = 0; // how many calls were given back a remembered result,
+  private long misses = 0; // and how many had to call function.
+
+  public LoxMemo(LoxCallable function, int size) {
+    this.function = function;
+    this.results = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+        return size() > size;
+      }
+    };
+  }
+  @Override
+  public int arity() {
+    return function.arity();
+  }
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    if (!isPure(interpreter) || !arguments.stream().allMatch(LoxMemo::isValue)) {
+      misses++;
+      return function.call(interpreter, arguments);
+    }
+    // (a copy, as the arguments might be a view of a stack that will be reused.)
+    List<Object> key = Arrays.asList(arguments.toArray());
+    Object result = results.get(key);
+    if (result != null || results.containsKey(key)) {
+      hits++;
+      return result;
+    }
+    misses++;
+    result = function.call(interpreter, arguments);
+    if (isValue(result)) results.put(key, result);
+    return result;
+  }
+  /**
+   * @return Whether function is pure, and if it calls itself by its global name, that the global still holds
+   * it or this memo, so that its own calls still give back the same results they did when they were remembered.
+   */
+  private boolean isPure(Interpreter interpreter) {
+    if (!function.isPure()) return false;
+    Token name = function.ownGlobal();
+    if (name == null) return true;
+    Object current = interpreter.globals.global(name.symbol).value();
+    return current == function || current == this;
+  }
+  /**
+   * @return Whether value is one that nothing can change, and that is equal to any other value
+   * (as a key of the results) exactly when Lox can't tell them apart.
+   */
+  private static boolean isValue(Object value) {
+    return value == null || value instanceof Double || value instanceof String || value instanceof Boolean;
+  }
+  /**
+   * @return A dictionary of how many calls were given back a remembered result (hits),
+   * how many had to call the function (misses), and how many results are remembered now (size).
+   */
+  public LoxDictionary stats() {
+    LoxDictionary stats = new LoxDictionary();
+    stats.put("hits", (double)hits);
+    stats.put("misses", (double)misses);
+    stats.put("size", (double)results.size());
+    return stats;
+  }
+  @Override
+  public String toString() {
+    return function.toString();
+  }
+}
@@ -0,0 +1,38 @@
+package com.timfan.lox;
+
+import java.util.List;
+
+/**
+ * A function written in Java, one of the natives the Interpreter defines, e.g.
+ *
+ * new LoxNative(1) {
+ *   @Override
+ *   public Object call1(Interpreter interpreter, Object a) { ... }
+ * }
+ *
+ * which overrides the one of call0 to call3 for its arity, so calling it never needs a List.
+ * call, for a caller that has its arguments in a List anyway, just passes them on to it.
+ */
+abstract class LoxNative implements LoxCallable {
+  private final int arity;
+  LoxNative(int arity) {
+    this.arity = arity;
+  }
+  @Override
+  public int arity() {
+    return arity;
+  }
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    switch (arity) {
+      case 0: return call0(interpreter);
+      case 1: return call1(interpreter, arguments.get(0));
+      case 2: return call2(interpreter, arguments.get(0), arguments.get(1));
+      default: return call3(interpreter, arguments.get(0), arguments.get(1), arguments.get(2));
+    }
+  }
+  @Override
+  public String toString() {
+    return "<native fn>";
+  }
+}
@@ -0,0 +1,90 @@
+package com.timfan.lox;
+import java.util.ArrayDeque;
+import java.util.Deque;
+/**
+ * A string made by adding two strings together, kept as the two strings it was made from (each a String
+ * or another LoxRope), rather than copying both of them into a new String, so that building a string
+ * up a piece at a time, as a loop does with s = s + line, only takes as long as all the pieces put together,
+ * rather than copying everything built so far on every +.
+ *
+ * a rope is only flattened into a String, once, and then kept, when something needs the characters themselves:
+ * when it is printed (see Operators.stringify), or used as a dictionary key. anything else that takes strings
+ * (+, and str) takes a rope as it is.
+ *
+ * adding strings that are short, together, just makes a String, as a rope of them would only be slower.
+ */
+public final class LoxRope {
+  private static final int MIN_LENGTH = 256; // shorter than this, and + makes a String.
+
+  private Object left; // a String or LoxRope, until the rope is flattened,
+  private Object right;
+  private final int length;
+  private volatile String flat = null; // and then the whole of it.
+
+  private LoxRope(Object left, Object right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+  /**
+   * @return Whether value is a Lox string, which is either a String or a LoxRope.
+   */
+  public static boolean isString(Object value) {
+    return value instanceof String || value instanceof LoxRope;
+  }
+  /**
+   * @return left + right, for two Lox strings.
+   */
+  public static Object concatenate(Object left, Object right) {
+    if (left instanceof String && right instanceof String) {
+      String leftString = (String)left;
+      String rightString = (String)right;
+      if (leftString.length() + rightString.length() < MIN_LENGTH) return leftString + rightString;
+    }
+    int length = length(left) + length(right);
+    if (length < MIN_LENGTH) return left.toString() + right.toString();
+    return new LoxRope(left, right, length);
+  }
+  private static int length(Object string) {
+    return string instanceof LoxRope ? ((LoxRope)string).length : ((String)string).length();
+  }
+  /**
+   * @return The whole string, flattened the first time it is asked for.
+   */
+  @Override
+  public String toString() {
+    String string = flat;
+    return string != null ? string : flatten();
+  }
+  /**
+   * Copies the pieces into a single String, in order, going through them with a stack of its own
+   * (a rope built by a loop is as deep as the loop went round), and then lets go of them.
+   */
+  private synchronized String flatten() {
+    if (flat != null) return flat;
+    StringBuilder builder = new StringBuilder(length);
+    Deque<Object> pieces = new ArrayDeque<>();
+    pieces.push(this);
+    while (!pieces.isEmpty()) {
+      Object piece = pieces.pop();
+      if (piece instanceof String) {
+        builder.append((String)piece);
+        continue;
+      }
+      LoxRope rope = (LoxRope)piece;
+      Object ropeLeft = rope.left;
+      Object ropeRight = rope.right;
+      if (rope.flat != null || ropeLeft == null || ropeRight == null) {
+        // it has been flattened already (maybe by another thread, just now, so its pieces are gone).
+        builder.append(rope.toString());
+        continue;
+      }
+      pieces.push(ropeRight);
+      pieces.push(ropeLeft);
+    }
+    flat = builder.toString();
+    left = null;
+    right = null;
+    return flat;
+  }
+}
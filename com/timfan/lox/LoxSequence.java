@@ -0,0 +1,90 @@
+package com.timfan.lox;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+/**
+ * A lazy sequence, made by lazy(array), which map, filter and take don't run over straight away,
+ * but just give a new sequence with one more stage, e.g.
+ *
+ * reduce(f, map(g, filter(p, lazy(xs))))
+ *
+ * only when the sequence is used up, by reduce or collect, are all the stages run, fused
+ * into a single pass over the array: each value goes through every stage before the next value
+ * is looked at, and no array is made for what comes out of each stage.
+ *
+ * so, unlike with arrays, the functions of different stages are called in turn for each value,
+ * and not at all for the values after a take has all it will take.
+ */
+public class LoxSequence {
+  private enum Kind { MAP, FILTER, TAKE }
+  private static final class Stage {
+    final Kind kind;
+    final LoxCallable function; // for a map or filter,
+    final int count; // or how many values a take lets through.
+    Stage(Kind kind, LoxCallable function, int count) {
+      this.kind = kind;
+      this.function = function;
+      this.count = count;
+    }
+  }
+
+  private final LoxArray source;
+  private final List<Stage> stages;
+
+  public LoxSequence(LoxArray source) {
+    this(source, new ArrayList<>());
+  }
+  private LoxSequence(LoxArray source, List<Stage> stages) {
+    this.source = source;
+    this.stages = stages;
+  }
+  public LoxSequence map(LoxCallable function) {
+    return then(new Stage(Kind.MAP, function, 0));
+  }
+  public LoxSequence filter(LoxCallable function) {
+    return then(new Stage(Kind.FILTER, function, 0));
+  }
+  public LoxSequence take(int count) {
+    return then(new Stage(Kind.TAKE, null, count));
+  }
+  private LoxSequence then(Stage stage) {
+    List<Stage> stages = new ArrayList<>(this.stages);
+    stages.add(stage);
+    return new LoxSequence(source, stages);
+  }
+  /**
+   * Runs every stage over the source in a single pass, giving each value that comes out of the last stage
+   * to sink, until the source runs out or a take has let through all it will.
+   */
+  public void run(Interpreter interpreter, Consumer<Object> sink) {
+    int[] taken = new int[stages.size()];
+    for (int i = 0; i < stages.size(); i++) {
+      if (stages.get(i).kind == Kind.TAKE && stages.get(i).count <= 0) return;
+    }
+    for (int i = 0; i < source.size(); i++) {
+      Object value = source.isNumbers() ? source.getNumber(i) : source.get(i);
+      boolean done = false; // whether a take has now let through all it will.
+      boolean passed = true;
+      for (int s = 0; s < stages.size() && passed; s++) {
+        Stage stage = stages.get(s);
+        switch (stage.kind) {
+          case Kind.MAP:
+            value = stage.function.call1(interpreter, value);
+            break;
+          case Kind.FILTER:
+            passed = Operators.isTruthy(stage.function.call1(interpreter, value));
+            break;
+          case Kind.TAKE:
+            if (++taken[s] == stage.count) done = true;
+            break;
+        }
+      }
+      if (passed) sink.accept(value);
+      if (done) return;
+    }
+  }
+  @Override
+  public String toString() {
+    return "<sequence>";
+  }
+}
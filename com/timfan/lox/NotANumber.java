@@ -0,0 +1,25 @@
+package com.timfan.lox;
+
+/**
+ * Thrown when an expression that has only ever given numbers, and so is being worked out as a double
+ * rather than as a boxed Double (see Interpreter.number), gives something else after all.
+ *
+ * it carries the value the expression did give, already evaluated, so that whatever was expecting
+ * a number can carry on with it the generic way, and then stop expecting numbers there.
+ * that only happens once for each operator, so it has no stack trace, to be cheap to make.
+ */
+final class NotANumber extends RuntimeException {
+  final Object value;
+  NotANumber(Object value) {
+    super(null, null, false, false);
+    this.value = value;
+  }
+  /**
+   * @return value, as a double.
+   * @throws NotANumber If it isn't a number.
+   */
+  static double expect(Object value) {
+    if (value instanceof Double) return (double)value;
+    throw new NotANumber(value);
+  }
+}
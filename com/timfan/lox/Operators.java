@@ -0,0 +1,232 @@
+package com.timfan.lox;
+
+
+/**
+ * What each Lox operator does to the values it is given, and how it fails.
+ *
+ * both the tree-walk Interpreter and the bytecode VM (see com.timfan.lox.vm) evaluate
+ * the operands themselves, in their own way, and then hand the values to the same methods here,
+ * so that a Lox program gives the same results and the same runtime errors on either engine.
+ */
+public final class Operators {
+  private Operators() {}
+  /**
+   * A binary operator, checking its operands' types as it goes.
+   */
+  public static Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case TokenType.PLUS:          return add(operator, left, right);
+      case TokenType.MINUS:         return subtract(operator, left, right);
+      case TokenType.STAR:          return multiply(operator, left, right);
+      case TokenType.SLASH:         return divide(operator, left, right);
+      case TokenType.LESS:          return less(operator, left, right);
+      case TokenType.GREATER:       return greater(operator, left, right);
+      case TokenType.LESS_EQUAL:    return lessEqual(operator, left, right);
+      case TokenType.GREATER_EQUAL: return greaterEqual(operator, left, right);
+      case TokenType.EQUAL_EQUAL:   return equal(operator, left, right);
+      case TokenType.BANG_EQUAL:    return notEqual(operator, left, right);
+      default:
+        break;
+    }
+    // control should not reach here...
+    return null;
+  }
+  public static Object add(Token operator, Object left, Object right) {
+    if (LoxRope.isString(left) && LoxRope.isString(right)) {
+      return LoxRope.concatenate(left, right);
+    }
+    if ((left instanceof Double) && (right instanceof Double)) {
+      return (double)left + (double)right;
+    }
+    if ((left instanceof LoxArray) && (right instanceof LoxArray)) {
+      return concatenate((LoxArray)left, (LoxArray)right);
+    }
+    throw new RuntimeError(operator, "Can only add two numbers or two strings together");
+  }
+  /**
+   * Adding two arrays makes a new array, with the left's values and then the right's.
+   */
+  public static LoxArray concatenate(LoxArray left, LoxArray right) {
+    return LoxArray.concatenate(left, right);
+  }
+  public static Object subtract(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left - (double)right;
+  }
+  public static Object multiply(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left * (double)right;
+  }
+  public static Object divide(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left / (double)right;
+  }
+  public static Object less(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left < (double)right;
+  }
+  public static Object greater(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left > (double)right;
+  }
+  public static Object lessEqual(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left <= (double)right;
+  }
+  public static Object greaterEqual(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double)left >= (double)right;
+  }
+  public static Object equal(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double) left == (double)right;
+  }
+  public static Object notEqual(Token operator, Object left, Object right) {
+    checkNumberOperand(operator, left, right);
+    return (double) left != (double)right;
+  }
+  public static Object negate(Token operator, Object value) {
+    // make sure value is a Double.
+    checkNumberOperand(operator, value);
+    return Double.valueOf(-(double)value);
+  }
+  public static Object not(Object value) {
+    // in Lox all objects are either truthy or falsey, so can negate value no matter what object it is.
+    return Boolean.valueOf(!isTruthy(value));
+  }
+  /**
+   * The subscriptee of a [] is checked as soon as it has been evaluated, before the index is.
+   * @throws RuntimeError When subscriptee is neither an array nor a dictionary.
+   */
+  public static void checkSubscriptable(Token bracket, Object subscriptee) {
+    if (!(subscriptee instanceof LoxArray) && !(subscriptee instanceof LoxDictionary)) {
+      throw new RuntimeError(bracket, "Can only use subscript operator [] on arrays or dictionaries.");
+    }
+  }
+  public static Object getSubscript(Token bracket, Object subscriptee, Object index) {
+    if (subscriptee instanceof LoxArray) {
+      LoxArray array = (LoxArray)subscriptee;
+      int i = checkArrayIndex(bracket, array, index);
+      // (without going through get, for an array of numbers.)
+      if (array.isNumbers()) return array.getNumber(i);
+      return array.get(i);
+    } else {
+      Object value = ((LoxDictionary)subscriptee).get(index);
+      if (value == LoxDictionary.ABSENT) {
+        throw new RuntimeError(bracket, "Dictionary does not contain given key.");
+      }
+      return value;
+    }
+  }
+  /**
+   * getSubscript, for an array of numbers and an index that is a number, without boxing either.
+   */
+  public static double getNumberSubscript(Token bracket, LoxArray array, double index) {
+    return array.getNumber(checkArrayIndex(bracket, array, index));
+  }
+  /**
+   * An array's index is checked as soon as it has been evaluated, before the value to assign is.
+   */
+  public static void checkSubscriptIndex(Token bracket, Object subscriptee, Object index) {
+    if (subscriptee instanceof LoxArray) {
+      checkArrayIndex(bracket, (LoxArray)subscriptee, index);
+    }
+  }
+  public static Object setSubscript(Token bracket, Object subscriptee, Object index, Object value) {
+    if (subscriptee instanceof LoxArray) {
+      // assign array at index to value.
+      LoxArray array = (LoxArray)subscriptee;
+      int i = checkArrayIndex(bracket, array, index);
+      if (array.isNumbers() && value instanceof Double) {
+        array.setNumber(i, (double)value);
+      } else {
+        array.set(i, value);
+      }
+    } else {
+      // insert into (or update) dictionary.
+      ((LoxDictionary)subscriptee).put(index, value);
+    }
+    return value;
+  }
+  /**
+   * @return The index as an int, once it is known to be a whole number within list's bounds.
+   */
+  private static int checkArrayIndex(Token bracket, LoxArray array, Object indexObject) {
+    if (!(indexObject instanceof Double)) {
+      throw new RuntimeError(bracket, "Can only use subscript operator [] with integers.");
+    }
+    return checkArrayIndex(bracket, array, (double)indexObject);
+  }
+  private static int checkArrayIndex(Token bracket, LoxArray array, double index) {
+    // nearly every index is a whole number within bounds, which is all this has to check for that.
+    // (a double that isn't a whole number, or is outside the range of an int, changes when cast to one.)
+    int i = (int)index;
+    if (i == index && i >= 0 && i < array.size()) return i;
+    if (Math.floor(index) != index) {
+      throw new RuntimeError(bracket, "Can only use subscript operator [] with integers.");
+    }
+    if ((int)index < 0 || (int)index >= array.size()) {
+      throw new RuntimeError(bracket, "Array index out of bounds.");
+    }
+    return (int)index;
+  }
+  /**
+   * Used for validating operands before an arithmetic unary operation.
+   * @throws RuntimeError When operand is not a Double.
+   */
+  private static void checkNumberOperand(Token operator, Object operand) {
+    if (operand instanceof Double) return;
+    // although really it is a bad operand (e.g. a string when should be a number) that caused
+    // the error (rather than a bad operator), telling the user that the string "abc" caused the error
+    // doesn't really help the user find where the error happened in the source code,
+    // since that operand could have been used with any number of operators in the source code.
+    // so, specifying which operator it was that operated on the operand that caused the error
+    // is meant to help the user find where the error happened in the source code.
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+  /**
+   * Used for validating operands before an arithmetic binary operation.
+   * @throws RuntimeError When either operand is not a Double.
+   */
+  private static void checkNumberOperand(Token operator, Object leftOperand, Object rightOperand) {
+    if ((leftOperand instanceof Double) && (rightOperand instanceof Double)) return;
+    throw new RuntimeError(operator, "Both operands must be numbers.");
+  }
+  /**
+   * In Lox all values -- in jLox represented as java.lang.Object objects -- have truthiness.
+   * @return if value is truthy.
+   */
+  public static boolean isTruthy(Object value) {
+    if (value instanceof Boolean) {
+      Boolean booleanValue = (Boolean) value;
+      return booleanValue.booleanValue();
+    }
+    if (value == null) return false;
+    return true;
+  }
+  /**
+   * We don't want to show the user java's string representation of these java objects.
+   * Instead, we show the user lox's string representation of lox's values.
+   * @return Lox's string representation of the Lox value given.
+   */
+  public static String stringify(Object value) {
+    if (value == null) return "nil";
+    if (value instanceof Double) {
+      double number = (double)value;
+      int integer = (int)number;
+      if (integer == number && integer > -10_000_000 && integer < 10_000_000 && (integer != 0 || 1 / number > 0)) {
+        // a whole number that Double.toString would give as digits and then ".0" (rather than as 1.0E7,
+        // or -0.0), which is just what Integer.toString gives without the ".0".
+        return Integer.toString(integer);
+      }
+      String string = value.toString();
+      if (string.endsWith(".0")) {
+        // though this Lox value is being stored in a java.lang.Double,
+        // the underlying value is really a Lox integer.
+        // to not confuse the user, pretend as if the value was stored in a java.lang.Integer.
+        return string.substring(0, string.length() - 2);
+      }
+    }
+    return value.toString();
+  }
+}
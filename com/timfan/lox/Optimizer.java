@@ -0,0 +1,307 @@
+package com.timfan.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites resolved statements into ones that do the same thing with less work, before any engine runs them.
+ *
+ * it folds operators whose operands are all literals into a single literal, drops groupings,
+ * simplifies conditions (!!x, where only x's truthiness matters, and literal conditions),
+ * and removes statements that can never run.
+ *
+ * the rewritten tree gives the same output and the same runtime errors, on the same lines:
+ * an operator that would fail on its literal operands (e.g., "a" - 1) is left for the engine to fail on,
+ * and nothing that is evaluated is ever dropped, only things that are known not to be.
+ * the rebuilt nodes keep whatever the Resolver wrote onto the old ones.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>();
+    for (Stmt statement : statements) {
+      Stmt stmt = optimize(statement);
+      if (stmt != null) optimized.add(stmt);
+      // nothing after a return, break, or continue in the same list of statements can run.
+      if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) break;
+    }
+    return optimized;
+  }
+  /**
+   * @return The optimized statement, or null if it does nothing at all.
+   */
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+  private List<Expr> optimizeExprs(List<Expr> exprs) {
+    List<Expr> optimized = new ArrayList<>();
+    for (Expr expr : exprs) {
+      optimized.add(optimize(expr));
+    }
+    return optimized;
+  }
+  /**
+   * The body of an if or while, which has to be some statement, even one that does nothing.
+   */
+  private Stmt body(Stmt stmt) {
+    Stmt body = optimize(stmt);
+    return body != null ? body : new Stmt.Block(new ArrayList<>());
+  }
+  /**
+   * An expression of which only the truthiness matters, like the condition of an if or while,
+   * so that !!x can be just x.
+   */
+  private Expr condition(Expr expr) {
+    Expr condition = optimize(expr);
+    while (isNot(condition) && isNot(((Expr.Unary)condition).right)) {
+      condition = ((Expr.Unary)((Expr.Unary)condition).right).right;
+    }
+    return condition;
+  }
+  private static boolean isNot(Expr expr) {
+    return expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.BANG;
+  }
+  /**
+   * @return Whether expr always gives true or false (if it gives anything at all).
+   */
+  private static boolean isBoolean(Expr expr) {
+    if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Boolean;
+    if (expr instanceof Expr.Logic) return true; // and, or always give true or false.
+    if (isNot(expr)) return true;
+    if (expr instanceof Expr.Binary) {
+      switch (((Expr.Binary)expr).operator.type) {
+        case TokenType.LESS:
+        case TokenType.GREATER:
+        case TokenType.LESS_EQUAL:
+        case TokenType.GREATER_EQUAL:
+        case TokenType.EQUAL_EQUAL:
+        case TokenType.BANG_EQUAL:
+          return true;
+        default:
+          return false;
+      }
+    }
+    return false;
+  }
+  /**
+   * @return Whether expr always gives a number (if it gives anything at all, rather than a runtime error).
+   */
+  private static boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+    if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case TokenType.MINUS:
+        case TokenType.STAR:
+        case TokenType.SLASH:
+          return true;
+        case TokenType.PLUS:
+          // adding could also be joining strings or arrays, unless both sides are numbers.
+          return isNumber(binary.left) && isNumber(binary.right);
+        default:
+          return false;
+      }
+    }
+    return false;
+  }
+  /**
+   * @return Whether expr always gives a number or a string (if it gives anything at all), which nothing can change,
+   * so that working it out again gives back an equal value, rather than, as adding two arrays does, a new array.
+   */
+  static boolean isNumberOrString(Expr expr) {
+    if (expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof String) return true;
+    if (expr instanceof Expr.Binary && ((Expr.Binary)expr).operator.type == TokenType.PLUS) {
+      return isNumberOrString(((Expr.Binary)expr).left) && isNumberOrString(((Expr.Binary)expr).right);
+    }
+    return isNumber(expr);
+  }
+  private static boolean isLiteral(Expr expr) {
+    return expr instanceof Expr.Literal;
+  }
+  private static boolean isLiteral(Expr expr, double value) {
+    return expr instanceof Expr.Literal && Double.valueOf(value).equals(((Expr.Literal)expr).value);
+  }
+  private static Object value(Expr expr) {
+    return ((Expr.Literal)expr).value;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    // an expression statement that is only a literal or a lambda does nothing.
+    if (expression instanceof Expr.Literal || expression instanceof Expr.Lambda) return null;
+    return new Stmt.Expression(expression);
+  }
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function function = new Stmt.Function(stmt.identifier, stmt.params, optimize(stmt.body));
+    function.size = stmt.size;
+    function.parallel = stmt.parallel;
+    function.pure = stmt.pure;
+    function.callsOwnGlobal = stmt.callsOwnGlobal;
+    return function;
+  }
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(optimize(stmt.expression));
+  }
+  @Override
+  public Stmt visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    // kept even without an initialiser, for the slot it defines.
+    return new Stmt.VarDeclaration(stmt.identifier, stmt.initialiser == null ? null : optimize(stmt.initialiser));
+  }
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    Stmt.Block block = new Stmt.Block(optimize(stmt.statements));
+    block.size = stmt.size;
+    return block;
+  }
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = condition(stmt.condition);
+    if (isLiteral(condition)) {
+      // only one of the branches can ever run.
+      Stmt taken = Operators.isTruthy(value(condition)) ? stmt.thenStmt : stmt.elseStmt;
+      return taken == null ? null : optimize(taken);
+    }
+    Stmt thenStmt = body(stmt.thenStmt);
+    Stmt elseStmt = stmt.elseStmt == null ? null : optimize(stmt.elseStmt);
+    return new Stmt.If(condition, thenStmt, elseStmt);
+  }
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = condition(stmt.condition);
+    if (isLiteral(condition) && !Operators.isTruthy(value(condition))) {
+      // the body never runs.
+      return null;
+    }
+    return new Stmt.While(condition, body(stmt.body));
+  }
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+    Stmt.Return optimized = new Stmt.Return(stmt.keyword, optimize(stmt.value));
+    optimized.tailCall = optimized.value instanceof Expr.Call;
+    return optimized;
+  }
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+    if (isLiteral(left) && isLiteral(right)) {
+      try {
+        return new Expr.Literal(Operators.binary(expr.operator, value(left), value(right)));
+      } catch (RuntimeError error) {
+        // leave it for the engine to fail on, when (and if) it is run.
+      }
+    }
+    // x * 1, 1 * x, x / 1, and x - 0 are just x, for a number x (even -0 or NaN).
+    // x + 0 isn't, as -0 + 0 is 0.
+    switch (expr.operator.type) {
+      case TokenType.STAR:
+        if (isLiteral(right, 1) && isNumber(left)) return left;
+        if (isLiteral(left, 1) && isNumber(right)) return right;
+        break;
+      case TokenType.SLASH:
+        if (isLiteral(right, 1) && isNumber(left)) return left;
+        break;
+      case TokenType.MINUS:
+        if (isLiteral(right, 0) && isNumber(left)) return left;
+        break;
+      default:
+        break;
+    }
+    return new Expr.Binary(left, expr.operator, right);
+  }
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    if (isLiteral(right)) {
+      try {
+        return new Expr.Literal(expr.operator.type == TokenType.MINUS ? Operators.negate(expr.operator, value(right)) : Operators.not(value(right)));
+      } catch (RuntimeError error) {
+        // as for a binary operator, leave the error for the engine.
+      }
+    }
+    // !!x is x, when x is already true or false.
+    if (expr.operator.type == TokenType.BANG && isNot(right) && isBoolean(((Expr.Unary)right).right)) {
+      return ((Expr.Unary)right).right;
+    }
+    return new Expr.Unary(expr.operator, right);
+  }
+  @Override
+  public Expr visitLogicExpr(Expr.Logic expr) {
+    // and, or only look at how truthy their operands are.
+    Expr left = condition(expr.left);
+    Expr right = condition(expr.right);
+    if (isLiteral(left)) {
+      boolean truthy = Operators.isTruthy(value(left));
+      if (expr.operator.type == TokenType.AND && !truthy) return new Expr.Literal(Boolean.FALSE);
+      if (expr.operator.type == TokenType.OR && truthy) return new Expr.Literal(Boolean.TRUE);
+      // otherwise the result is how truthy right is.
+      if (isLiteral(right)) return new Expr.Literal(Operators.isTruthy(value(right)));
+      if (isBoolean(right)) return right;
+    }
+    return new Expr.Logic(left, expr.operator, right);
+  }
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    // the parser has already used the parentheses, to decide the shape of the tree.
+    return optimize(expr.expression);
+  }
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr.Assign assign = new Expr.Assign(expr.identifier, optimize(expr.value));
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    return assign;
+  }
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    return new Expr.Call(optimize(expr.callee), expr.paren, optimizeExprs(expr.arguments));
+  }
+  @Override
+  public Expr visitArrayExpr(Expr.Array expr) {
+    return new Expr.Array(optimizeExprs(expr.values));
+  }
+  @Override
+  public Expr visitDictionaryExpr(Expr.Dictionary expr) {
+    return new Expr.Dictionary(optimizeExprs(expr.dictionary));
+  }
+  @Override
+  public Expr visitSubscriptExpr(Expr.Subscript expr) {
+    return new Expr.Subscript(optimize(expr.subscriptee), expr.bracket, optimize(expr.index));
+  }
+  @Override
+  public Expr visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    return new Expr.SubscriptAssign(optimize(expr.subscriptee), expr.bracket, optimize(expr.index), optimize(expr.value));
+  }
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    return new Expr.Lambda((Stmt.Function)optimize(expr.function));
+  }
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr;
+  }
+}
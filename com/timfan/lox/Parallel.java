@@ -0,0 +1,127 @@
+package com.timfan.lox;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+/**
+ * What pmap, pfilter and preduce use to call a function on the values of an array from every core at once,
+ * by splitting the array into chunks, each of which a task of the common ForkJoinPool goes through in order.
+ *
+ * that is only safe when nothing can tell which thread called the function, or in what order,
+ * which the Resolver has worked out for each function it can (see Stmt.Function.parallel):
+ * the function doesn't print, doesn't assign to anything but its own locals,
+ * doesn't assign into an array or dictionary, and doesn't call anything other than str or len.
+ * anything else is left to the sequential map, filter and reduce.
+ *
+ * each chunk gets an Interpreter of its own, to call the function with, and results are put
+ * back together in the order of the array, so the result is the same as map, filter and reduce's.
+ * (except that preduce reduces each chunk by itself, and then reduces the chunks' results,
+ * so it is only the same as reduce when the reducer is associative.)
+ * a runtime error is reported for the first value that has one, as it would have been.
+ */
+class Parallel {
+  private static final int MIN_CHUNK = 64; // fewer values than this in a chunk aren't worth a task.
+
+  /**
+   * The part of the work done for values from (inclusive) to to (exclusive), which is chunk
+   * of all of them, with interpreter to call the function with.
+   */
+  private interface Work {
+    void run(Interpreter interpreter, int chunk, int from, int to);
+  }
+
+  /**
+   * @return Whether function can be called on the values of array from more than one thread at once,
+   * and there are enough of them, and enough threads, for that to be worth it.
+   */
+  static boolean isSafe(Interpreter interpreter, Object function, int arity, Object array) {
+    if (!(function instanceof LoxFunction) || !(array instanceof LoxArray)) return false;
+    LoxFunction loxFunction = (LoxFunction)function;
+    return loxFunction.declaration.parallel
+        && loxFunction.arity() == arity
+        && ForkJoinPool.getCommonPoolParallelism() > 1 && chunks(((LoxArray)array).size()) > 1
+        // the Resolver only let through calls to the globals str and len, which have to still be the natives.
+        && interpreter.isPureNative("str") && interpreter.isPureNative("len");
+  }
+  static LoxArray map(Interpreter interpreter, LoxFunction function, LoxArray array) {
+    Object[] results = new Object[array.size()];
+    run(interpreter, array.size(), (worker, chunk, from, to) -> {
+      for (int i = from; i < to; i++) {
+        results[i] = function.call1(worker, value(array, i));
+      }
+    });
+    LoxArray applied = new LoxArray();
+    for (Object result : results) {
+      applied.add(result);
+    }
+    return applied;
+  }
+  static LoxArray filter(Interpreter interpreter, LoxFunction function, LoxArray array) {
+    boolean[] kept = new boolean[array.size()];
+    run(interpreter, array.size(), (worker, chunk, from, to) -> {
+      for (int i = from; i < to; i++) {
+        kept[i] = Operators.isTruthy(function.call1(worker, value(array, i)));
+      }
+    });
+    LoxArray filtered = new LoxArray();
+    for (int i = 0; i < kept.length; i++) {
+      if (kept[i]) filtered.add(value(array, i));
+    }
+    return filtered;
+  }
+  static Object reduce(Interpreter interpreter, LoxFunction function, LoxArray array) {
+    Object[] reduced = new Object[chunks(array.size())]; // each chunk's values, reduced.
+    run(interpreter, array.size(), (worker, chunk, from, to) -> {
+      Object result = value(array, from);
+      for (int i = from + 1; i < to; i++) {
+        result = function.call2(worker, result, value(array, i));
+      }
+      reduced[chunk] = result;
+    });
+    Object result = reduced[0];
+    for (int chunk = 1; chunk < reduced.length; chunk++) {
+      result = function.call2(interpreter, result, reduced[chunk]);
+    }
+    return result;
+  }
+  private static Object value(LoxArray array, int index) {
+    return array.isNumbers() ? array.getNumber(index) : array.get(index);
+  }
+  /**
+   * @return How many chunks size values are split into.
+   */
+  private static int chunks(int size) {
+    return Math.min(size / MIN_CHUNK, 4 * ForkJoinPool.getCommonPoolParallelism());
+  }
+  /**
+   * Does work for every chunk of size values on the common pool, and once all of them are done,
+   * throws the error of the first chunk that had one.
+   */
+  private static void run(Interpreter interpreter, int size, Work work) {
+    int chunks = chunks(size);
+    RuntimeError[] errors = new RuntimeError[chunks];
+    class Split extends RecursiveAction {
+      final int first;
+      final int last; // the chunks first (inclusive) to last (exclusive).
+      Split(int first, int last) {
+        this.first = first;
+        this.last = last;
+      }
+      @Override
+      protected void compute() {
+        if (last - first > 1) {
+          int middle = (first + last) >>> 1;
+          invokeAll(new Split(first, middle), new Split(middle, last));
+          return;
+        }
+        try {
+          work.run(interpreter.worker(), first, (int)((long)size * first / chunks), (int)((long)size * last / chunks));
+        } catch (RuntimeError error) {
+          errors[first] = error;
+        }
+      }
+    }
+    ForkJoinPool.commonPool().invoke(new Split(0, chunks));
+    for (RuntimeError error : errors) {
+      if (error != null) throw error;
+    }
+  }
+}
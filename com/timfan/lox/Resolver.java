@@ -1,10 +1,14 @@
 package com.timfan.lox;
 import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private enum FunctionType {
     MAIN, LOCAL
   }
@@ -18,16 +22,48 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
    * 
    * which variable declaration the interpreter should use when it visits this variable reference.
    * 
-   * we will call interpreter.resolve(varRefExpr, depth) for each variable reference, 
+   * each scope is keyed on the id Symbols gave the name (see Token.symbol), rather than the name itself.
+   *
+   * we will write the (depth, slot) pair straight onto each variable reference node, 
    * so that the interpreter knows which variable declaration for each variable reference.
+   * a variable reference left with depth GLOBAL refers to a declaration in the global environment.
    */
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Stack<Map<Integer, Boolean>> scopes = new Stack<>();
+  /**
+   * alongside each scope, the slot each of its declarations was given, numbered in the order 
+   * they were declared. the interpreter gives each local environment exactly this many slots, 
+   * and uses (depth, slot) rather than the variable's name to find the intended declaration.
+   */
+  private final Stack<Map<Integer, Integer>> slots = new Stack<>();
+  /**
+   * alongside each scope, the names of its declarations that are assigned to somewhere, and the functions 
+   * declared in it. a function whose name is assigned to can't call itself by that name and be sure it is
+   * still calling itself, so it isn't pure after all (see endScope).
+   * (a global name can be assigned to by any later line, so LoxMemo checks those as it is called instead.)
+   */
+  private final Stack<Set<Integer>> assigned = new Stack<>();
+  private final Stack<List<Stmt.Function>> functions = new Stack<>();
   private FunctionType currentFunction = FunctionType.MAIN; // initially we are in the main function. change
                                                             // when enter local functions, non-main functions.
-  private final Interpreter interpreter;
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
-  }
+  private int loopDepth = 0; // how many loops of the current function we are inside of, for break and continue.
+  /**
+   * whether the current function could still be called from more than one thread at once (see Parallel):
+   * so far it hasn't printed, assigned to a variable other than its own locals, assigned into an array
+   * or dictionary, or called anything other than a pure native. 
+   * functionScope is the index of the current function's own scope, the outermost one of its locals.
+   */
+  private boolean parallel = false;
+  private int functionScope = 0;
+  /**
+   * whether the current function is pure, which asks more still: on top of all that, the only variable
+   * it uses that isn't one of its own locals is its own name, to call itself with, so that calling it
+   * with the same arguments always gives back the same result (see LoxMemo).
+   * (not even str and len, which could have been defined as something else by the time it is called.)
+   */
+  private boolean pure = false;
+  private Token functionName = null; // the current function's name, or null in a lambda.
+  private boolean callsOwnGlobal = false; // whether the current function uses its own name, and that name is a global.
+  public static final int GLOBAL = -1;
   /**
    * resolve handles both declarations and references.
    * 
@@ -35,7 +71,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
    * 
    * and for each reference, it searches through the stack starting from the top of stack,
    * for where the declaration this reference wants to use is. and after finding it, it 
-   * lets the interpreter know how deep to look to find that declaration.
+   * records on the reference how deep to look to find that declaration.
    */
   void resolve(Stmt stmt) {
     stmt.accept(this);
@@ -49,25 +85,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
   }
   void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new HashMap<Integer, Boolean>());
+    slots.push(new HashMap<Integer, Integer>());
+    assigned.push(new HashSet<Integer>());
+    functions.push(new ArrayList<Stmt.Function>());
   }
-  void endScope() {
+  /**
+   * @return how many slots the environment for the scope we are exiting needs.
+   */
+  int endScope() {
+    int size = slots.peek().size();
+    // only code inside of this scope could have assigned to its names, and we have now seen all of it.
+    for (Stmt.Function function : functions.peek()) {
+      if (assigned.peek().contains(function.identifier.symbol)) function.pure = false;
+    }
     scopes.pop();
+    slots.pop();
+    assigned.pop();
+    functions.pop();
+    return size;
   }
   void declare(Token identifier) {
     if (scopes.empty()) return; // we are in the global environment, no need for resolver.
-    if (scopes.peek().containsKey(identifier.lexeme)) {
+    if (scopes.peek().containsKey(identifier.symbol)) {
       Lox.error(identifier, "Already a variable with this name in this scope.");
       // might as well re-assign it for now? regardless, the source code won't be run by interpreter, 
       // so continue resolving to see if there are any more detectable reference declaration errors.
     }
     // declare this variable in the current local environment (it has not yet been initialised).
-    scopes.peek().put(identifier.lexeme, false);
+    scopes.peek().put(identifier.symbol, false);
+    // and give it the next free slot of the current local environment.
+    slots.peek().putIfAbsent(identifier.symbol, slots.peek().size());
   }
   void define(Token identifier) {
     if (scopes.empty()) return; // we are in the global environment, no need for resolver.
     // define this variable in the current local environment (it has now been initialised).
-    scopes.peek().put(identifier.lexeme, true);
+    scopes.peek().put(identifier.symbol, true);
   }
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
@@ -76,7 +129,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     beginScope();
     resolve(stmt.statements);
     // we are exiting block, so return to previous environment.
-    endScope();
+    stmt.size = endScope();
     return null;
   }
   @Override
@@ -89,10 +142,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // add the name of this function to the current local scope.
     declare(stmt.identifier);
     define(stmt.identifier);
+    if (!functions.empty()) functions.peek().add(stmt);
     // let our resolver know that we are now entering the body of a local function.
     FunctionType previous = currentFunction;
     currentFunction = FunctionType.LOCAL;
+    // a break or continue in the body can't reach loops outside of this function.
+    int previousLoopDepth = loopDepth;
+    loopDepth = 0;
+    boolean previousParallel = parallel;
+    boolean previousPure = pure;
+    int previousFunctionScope = functionScope;
+    Token previousFunctionName = functionName;
+    boolean previousCallsOwnGlobal = callsOwnGlobal;
+    parallel = true;
+    pure = true;
+    functionName = stmt.identifier;
+    callsOwnGlobal = false;
     beginScope();
+    functionScope = scopes.size() - 1;
     // then walk through its params code.
     for (Token param : stmt.params) {
       declare(param);
@@ -101,13 +168,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // then walk through its body code, where return statements in the body 
     // code are ok because the currentFunction is a local function, not the main.
     resolve(stmt.body);
-    endScope();
+    stmt.size = endScope();
+    stmt.parallel = parallel;
+    stmt.pure = pure;
+    stmt.callsOwnGlobal = callsOwnGlobal;
     // now revert back current function, which could be the main, but also a non-main.
     currentFunction = previous;
+    loopDepth = previousLoopDepth;
+    parallel = previousParallel;
+    pure = previousPure;
+    functionScope = previousFunctionScope;
+    functionName = previousFunctionName;
+    callsOwnGlobal = previousCallsOwnGlobal;
     return null;
   }
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
+    parallel = false;
+    pure = false;
     resolve(stmt.expression);
     return null;
   }
@@ -133,7 +211,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
     resolve(stmt.condition);
+    loopDepth++;
     resolve(stmt.body);
+    loopDepth--;
     return null;
   }
   @Override
@@ -144,14 +224,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     if (stmt.value != null) {
       resolve(stmt.value);
     }
+    // nothing is left for the function to do after a call it returns the result of,
+    // so the interpreter can make that call without nesting it inside this one (see LoxFunction.call).
+    stmt.tailCall = stmt.value instanceof Expr.Call;
     return null;
   }
   @Override
   public Void visitBreakStmt(Stmt.Break stmt) {
+    if (loopDepth == 0) {
+      Lox.error(stmt.keyword, "Can't break outside of a loop.");
+    }
     return null;
   }
   @Override
   public Void visitContinueStmt(Stmt.Continue stmt) {
+    if (loopDepth == 0) {
+      Lox.error(stmt.keyword, "Can't continue outside of a loop.");
+    }
     return null;
   }
   @Override
@@ -159,7 +248,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // let our resolver know that we are now entering the body of a local function.
     FunctionType previous = currentFunction;
     currentFunction = FunctionType.LOCAL;
+    // a break or continue in the body can't reach loops outside of this lambda.
+    int previousLoopDepth = loopDepth;
+    loopDepth = 0;
+    boolean previousParallel = parallel;
+    boolean previousPure = pure;
+    int previousFunctionScope = functionScope;
+    Token previousFunctionName = functionName;
+    parallel = true;
+    pure = true;
+    functionName = null;
     beginScope();
+    functionScope = scopes.size() - 1;
     // then walk through its params code.
     for (Token param : expr.function.params) {
       declare(param);
@@ -168,14 +268,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // then walk through its body code, where return statements in the body 
     // code are ok because the currentFunction is a local function, not the main.
     resolve(expr.function.body);
-    endScope();
+    expr.function.size = endScope();
+    expr.function.parallel = parallel;
+    expr.function.pure = pure;
     // now revert back current function, which could be the main, but also a non-main.
     currentFunction = previous;
+    loopDepth = previousLoopDepth;
+    parallel = previousParallel;
+    pure = previousPure;
+    functionScope = previousFunctionScope;
+    functionName = previousFunctionName;
     return null;
   }
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.empty() && scopes.peek().get(expr.identifier.lexeme) == Boolean.FALSE) {
+    if (!scopes.empty() && scopes.peek().get(expr.identifier.symbol) == Boolean.FALSE) {
       // for an edge case like 
       //
       // while (true) {
@@ -198,15 +305,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       return null;
     }
     // searching for the variable reference's intended declaration, and letting the interpreter know.
+    expr.depth = GLOBAL; // unless we find it in one of the local scopes.
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(expr.identifier.lexeme)) {
-        int depth = (scopes.size() - 1) - (i); // if i == scopes.size() - 1 [the intended declaration is in the current local environment], then depth == 0. 
-        interpreter.resolve(expr, depth); // when visiting this specific varRefExpr node during interpretation, 
-                                          // the interpreter will know they should search depth number of levels up the 
-                                          // environment chain to find the declaration the user wants to use.
+      if (scopes.get(i).containsKey(expr.identifier.symbol)) {
+        expr.depth = (scopes.size() - 1) - (i); // if i == scopes.size() - 1 [the intended declaration is in the current local environment], then depth == 0. 
+        expr.slot = slots.get(i).get(expr.identifier.symbol); // when visiting this specific varRefExpr node during interpretation, 
+                                                              // the interpreter will know they should go depth number of levels up the 
+                                                              // environment chain, and read that environment's slot for the declaration the user wants to use.
         break;
       }
     }
+    if (!isLocal(expr.depth) && !isFunctionName(expr)) pure = false;
+    if (expr.depth == GLOBAL && isFunctionName(expr)) callsOwnGlobal = true;
     return null;
   }
   @Override
@@ -218,6 +328,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitCallExpr(Expr.Call expr) {
     resolve(expr.callee);
+    // the only calls we can be sure of, before running, are those to str and len
+    // (whether they are still the natives is checked again when it matters, see Parallel.isSafe).
+    if (!(expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).depth == GLOBAL
+          && Arrays.asList("str", "len").contains(((Expr.Variable)expr.callee).identifier.lexeme))) {
+      parallel = false;
+    }
+    if (!(expr.callee instanceof Expr.Variable && isFunctionName((Expr.Variable)expr.callee))) {
+      pure = false;
+    }
     for (Expr argument : expr.arguments) {
       resolve(argument);
     }
@@ -245,6 +364,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
   @Override
   public Void visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    parallel = false;
+    pure = false;
     resolve(expr.subscriptee);
     resolve(expr.index);
     resolve(expr.value);
@@ -270,20 +391,46 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     resolve(expr.value);
     // the interpreter needs to know which variable declaration to assign to, 
     // within which environment should the variable of expr's name be reassinged.
+    expr.depth = GLOBAL; // unless we find it in one of the local scopes.
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(expr.identifier.lexeme)) {
-        int depth = (scopes.size() - 1) - (i); // if i == scopes.size() - 1 [the intended declaration is in the current local environment], then depth == 0. 
-        interpreter.resolve(expr, depth); // when visiting this specific varAssignExpr node during interpretation, 
-                                          // the interpreter will know they should search depth number of levels up the 
-                                          // environment chain to find the declaration the user wants to use.
+      if (scopes.get(i).containsKey(expr.identifier.symbol)) {
+        expr.depth = (scopes.size() - 1) - (i); // if i == scopes.size() - 1 [the intended declaration is in the current local environment], then depth == 0. 
+        expr.slot = slots.get(i).get(expr.identifier.symbol); // when visiting this specific varAssignExpr node during interpretation, 
+                                                              // the interpreter will know they should go depth number of levels up the 
+                                                              // environment chain, and write to that environment's slot for the declaration the user wants to use.
       }
     }
+    if (expr.depth != GLOBAL) assigned.get(scopes.size() - 1 - expr.depth).add(expr.identifier.symbol);
+    // assigning to anything other than one of the current function's own locals can be seen from outside of it.
+    if (!isLocal(expr.depth)) {
+      parallel = false;
+      pure = false;
+    }
     return null;
   }
+  /**
+   * @return Whether a variable resolved to depth is one of the current function's own locals.
+   */
+  private boolean isLocal(int depth) {
+    return depth != GLOBAL && scopes.size() - 1 - depth >= functionScope;
+  }
+  /**
+   * @return Whether variable is the current function's own name, which was declared in the scope
+   * just outside of the function's own (or is a global, if there is none).
+   */
+  private boolean isFunctionName(Expr.Variable variable) {
+    if (functionName == null || variable.identifier.symbol != functionName.symbol) return false;
+    return variable.depth == GLOBAL ? functionScope == 0 : scopes.size() - 1 - variable.depth == functionScope - 1;
+  }
   @Override
   public Void visitLogicExpr(Expr.Logic expr) {
     resolve(expr.left);
     resolve(expr.right);
     return null;
   }
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    // made by the Hoister from expressions that are already resolved.
+    return null;
+  }
 }
@@ -1,12 +1,12 @@
 package com.timfan.lox;
 
-class RuntimeError extends RuntimeException {
-  final Token token;
-  RuntimeError(String message) {
+public class RuntimeError extends RuntimeException {
+  public final Token token;
+  public RuntimeError(String message) {
     super(message);
     this.token = new Token(TokenType.NIL, message, null, 0);
   }
-  RuntimeError(Token token, String message) {
+  public RuntimeError(Token token, String message) {
     super(message);
     this.token = token;
   }
@@ -139,9 +139,15 @@ class Scanner {
     while (isAlphaNumeric(peek())) advance();
     // figure out if this string of alphanumeric characters (so only [a-zA-Z][a-zA-Z0-9]*),
     // is a keyword (like var), or is it just a normal identifer (like b).
-    TokenType type = keywords.get(source.substring(start, current));
-    if (type == null) type = TokenType.IDENTIFIER;
-    addToken(type);
+    String text = source.substring(start, current);
+    TokenType type = keywords.get(text);
+    if (type != null) {
+      addToken(type);
+      return;
+    }
+    // every use of the same name shares the one String, and the one id, that Symbols keeps for it.
+    int symbol = Symbols.intern(text);
+    tokens.add(new Token(TokenType.IDENTIFIER, Symbols.name(symbol), null, line, symbol));
   }
   private boolean isAlphaNumeric(char c) {
     return (isDigit(c) || isAlpha(c));
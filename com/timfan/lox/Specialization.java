@@ -0,0 +1,17 @@
+package com.timfan.lox;
+
+/**
+ * What kind of operands an Expr.Binary or Expr.Unary has been seen with so far.
+ *
+ * every operator starts out UNINITIALIZED, and the first time the Interpreter evaluates it, the node
+ * specializes itself to the types of the operands it got, so that from then on that type check is
+ * the only one it does. if it ever gets operands of some other type, it gives up on specializing
+ * and stays GENERIC for good, doing every check every time, like Operators always does.
+ */
+public enum Specialization {
+  UNINITIALIZED,
+  NUMBERS, // e.g. 1 + 2, 1 < 2, -1.
+  STRINGS, // "a" + "b" (either of which might be a LoxRope).
+  ARRAYS,  // [1] + [2].
+  GENERIC
+}
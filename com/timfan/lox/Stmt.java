@@ -1,7 +1,7 @@
 package com.timfan.lox;
 
 import java.util.List;
-abstract class Stmt {
+public abstract class Stmt {
   /**
    * the client offers the customer the whole menu,
    * and asks the customer to choose what they want from that menu.
@@ -26,7 +26,7 @@ abstract class Stmt {
    *    }
    *  }
    */
-  interface Visitor<R> {
+  public interface Visitor<R> {
     R visitExpressionStmt(Expression stmt);
     R visitFunctionStmt(Function stmt);
     R visitPrintStmt(Print stmt);
@@ -38,118 +38,124 @@ abstract class Stmt {
     R visitBreakStmt(Break stmt);
     R visitContinueStmt(Continue stmt);
   }
-  abstract <R> R accept(Visitor<R> visitor);
-  static class Expression extends Stmt {
+  public abstract <R> R accept(Visitor<R> visitor);
+  public static class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
     }
-    final Expr expression;
+    public final Expr expression;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExpressionStmt(this);
     }
   }
-  static class Function extends Stmt {
+  public static class Function extends Stmt {
     Function(Token identifier, List<Token> params, List<Stmt> body) {
       this.identifier = identifier;
       this.params = params;
       this.body = body;
     }
-    final Token identifier;
-    final List<Token> params;
-    final List<Stmt> body;
+    public final Token identifier;
+    public final List<Token> params;
+    public final List<Stmt> body;
+    public int size;
+    public boolean parallel;
+    public boolean pure;
+    public boolean callsOwnGlobal;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
   }
-  static class Print extends Stmt {
+  public static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
     }
-    final Expr expression;
+    public final Expr expression;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
   }
-  static class VarDeclaration extends Stmt {
+  public static class VarDeclaration extends Stmt {
     VarDeclaration(Token identifier, Expr initialiser) {
       this.identifier = identifier;
       this.initialiser = initialiser;
     }
-    final Token identifier;
-    final Expr initialiser;
+    public final Token identifier;
+    public final Expr initialiser;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarDeclarationStmt(this);
     }
   }
-  static class Block extends Stmt {
+  public static class Block extends Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
-    final List<Stmt> statements;
+    public final List<Stmt> statements;
+    public int size;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
   }
-  static class If extends Stmt {
+  public static class If extends Stmt {
     If(Expr condition, Stmt thenStmt, Stmt elseStmt) {
       this.condition = condition;
       this.thenStmt = thenStmt;
       this.elseStmt = elseStmt;
     }
-    final Expr condition;
-    final Stmt thenStmt;
-    final Stmt elseStmt;
+    public final Expr condition;
+    public final Stmt thenStmt;
+    public final Stmt elseStmt;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfStmt(this);
     }
   }
-  static class While extends Stmt {
+  public static class While extends Stmt {
     While(Expr condition, Stmt body) {
       this.condition = condition;
       this.body = body;
     }
-    final Expr condition;
-    final Stmt body;
+    public final Expr condition;
+    public final Stmt body;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitWhileStmt(this);
     }
   }
-  static class Return extends Stmt {
+  public static class Return extends Stmt {
     Return(Token keyword, Expr value) {
       this.keyword = keyword;
       this.value = value;
     }
-    final Token keyword;
-    final Expr value;
+    public final Token keyword;
+    public final Expr value;
+    public boolean tailCall;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitReturnStmt(this);
     }
   }
-  static class Break extends Stmt {
+  public static class Break extends Stmt {
     Break(Token keyword) {
       this.keyword = keyword;
     }
-    final Token keyword;
+    public final Token keyword;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBreakStmt(this);
     }
   }
-  static class Continue extends Stmt {
+  public static class Continue extends Stmt {
     Continue(Token keyword) {
       this.keyword = keyword;
     }
-    final Token keyword;
+    public final Token keyword;
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitContinueStmt(this);
     }
   }
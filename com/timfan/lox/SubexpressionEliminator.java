@@ -0,0 +1,471 @@
+package com.timfan.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Saves the value of a pure expression (arithmetic, comparisons, and subscripts of variables and literals,
+ * but not + unless both sides are numbers or strings, since adding two arrays makes a new one each time)
+ * the first time it is worked out, and uses the saved value where the same expression comes up again
+ * before anything could have changed it, e.g. the second cache[n] in
+ *
+ * if (cache[n] != -1) return cache[n];
+ *
+ * an expression stops being available once one of the variables in it is assigned to, once anything
+ * is assigned through a subscript (if it has a subscript), and after any call at all.
+ * it only flows forward through straight-line code: into both branches of an if (and out of it,
+ * if neither branch changed it), into the right of an and, or (likewise), but not into or out of a loop,
+ * which starts again with only what its own condition works out.
+ *
+ * the value is saved by assigning it to a new variable where it is first worked out, (t = cache[n]) != -1,
+ * and the later uses just read that variable. so nothing is worked out any earlier than before, and an
+ * expression that fails still fails the first time, on the same line. the new variables are declared at
+ * the start of the function (or program) they are used in, and the slots of that function's other
+ * locals are moved up to make room for them. a function small enough for the Inliner is left as it is.
+ *
+ * each function is gone through twice: once to find which expressions are used again,
+ * and then again to save just those, and use them.
+ */
+class SubexpressionEliminator implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+  /**
+   * An expression that has been worked out, which nothing has changed since.
+   */
+  private static final class Available {
+    final Expr origin; // where it was worked out.
+    final Key key;
+    Expr.Variable saved; // when rewriting, where its value was saved.
+    Available(Expr origin, Key key) {
+      this.origin = origin;
+      this.key = key;
+    }
+  }
+  /**
+   * What identifies a pure expression, and what it depends on.
+   *
+   * the structure is a list of what makes up the expression: its operator, and the structures
+   * of its operands (or a literal's value, or which variable it is), so that two expressions
+   * have equal structures only if they are the same expression, whatever is in their strings.
+   */
+  private static final class Key {
+    final List<Object> structure;
+    final Set<List<Object>> reads = new HashSet<>(); // the variables in it.
+    boolean subscripts = false;
+    Key(Object... structure) {
+      this.structure = Arrays.asList(structure);
+    }
+  }
+
+  private boolean rewriting = false; // false on the first time through a function, true the second.
+  private Set<Expr> reused = Collections.newSetFromMap(new IdentityHashMap<>()); // found the first time through.
+  private Map<List<Object>, Available> available = new HashMap<>();
+  private List<Integer> scopes = new ArrayList<>(); // an id for each scope we are in, the function's own first.
+  private int scopeCount = 0;
+  private Stmt.Function function = null; // null for the program's top level.
+  private List<Token> saves = new ArrayList<>(); // the new variables, in the order of their slots.
+  private int saveCount = 0;
+
+  List<Stmt> eliminate(List<Stmt> statements) {
+    return unit(statements, null);
+  }
+  /**
+   * Goes through the body of a function, or the top level if function is null, twice.
+   * @return The new body, with the new variables declared at its start.
+   */
+  private List<Stmt> unit(List<Stmt> body, Stmt.Function function) {
+    boolean previousRewriting = this.rewriting;
+    Set<Expr> previousReused = this.reused;
+    Map<List<Object>, Available> previousAvailable = this.available;
+    List<Integer> previousScopes = this.scopes;
+    Stmt.Function previousFunction = this.function;
+    List<Token> previousSaves = this.saves;
+    this.function = function;
+    this.reused = Collections.newSetFromMap(new IdentityHashMap<>());
+    this.saves = new ArrayList<>();
+    List<Stmt> result = null;
+    for (boolean rewrite : new boolean[] { false, true }) {
+      this.rewriting = rewrite;
+      this.available = new HashMap<>();
+      this.scopes = new ArrayList<>();
+      this.scopes.add(scopeCount++);
+      result = statements(body);
+    }
+    List<Stmt> declared = new ArrayList<>();
+    for (Token save : saves) {
+      declared.add(new Stmt.VarDeclaration(save, null));
+    }
+    declared.addAll(result);
+    this.rewriting = previousRewriting;
+    this.reused = previousReused;
+    this.available = previousAvailable;
+    this.scopes = previousScopes;
+    this.function = previousFunction;
+    this.saves = previousSaves;
+    return declared;
+  }
+  /**
+   * @return function, rebuilt with its repeated expressions saved, and room for the new variables.
+   */
+  private Stmt.Function function(Stmt.Function function) {
+    if (Inliner.isSmall(function)) return function;
+    List<Stmt> body = unit(function.body, function);
+    int added = body.size() - function.body.size(); // a declaration for each new variable.
+    Stmt.Function rebuilt = new Stmt.Function(function.identifier, function.params, body);
+    rebuilt.size = function.size + added;
+    // the new variables are only the function's own locals.
+    rebuilt.parallel = function.parallel;
+    rebuilt.pure = function.pure;
+    rebuilt.callsOwnGlobal = function.callsOwnGlobal;
+    if (added > 0) {
+      // the new variables are declared straight after the parameters, so are defined into the slots
+      // straight after theirs, but were numbered after all of the function's other locals, so swap them round.
+      int params = function.params.size();
+      int size = function.size;
+      renumber(body, 0, slot -> slot >= size ? params + (slot - size) : slot >= params ? slot + added : slot);
+    }
+    return rebuilt;
+  }
+  /**
+   * Gives each variable reference in statements that is level scopes up from them
+   * (i.e., in the scope they are in, when level is 0) the slot renumbered from the one it has.
+   */
+  private static void renumber(List<Stmt> statements, int level, IntUnaryOperator renumbered) {
+    for (Stmt statement : statements) {
+      renumber(statement, level, renumbered);
+    }
+  }
+  private static void renumber(Stmt stmt, int level, IntUnaryOperator renumbered) {
+    if (stmt instanceof Stmt.Expression) {
+      renumber(((Stmt.Expression)stmt).expression, level, renumbered);
+    } else if (stmt instanceof Stmt.Print) {
+      renumber(((Stmt.Print)stmt).expression, level, renumbered);
+    } else if (stmt instanceof Stmt.VarDeclaration) {
+      Expr initialiser = ((Stmt.VarDeclaration)stmt).initialiser;
+      if (initialiser != null) renumber(initialiser, level, renumbered);
+    } else if (stmt instanceof Stmt.Return) {
+      Expr value = ((Stmt.Return)stmt).value;
+      if (value != null) renumber(value, level, renumbered);
+    } else if (stmt instanceof Stmt.Block) {
+      renumber(((Stmt.Block)stmt).statements, level + 1, renumbered);
+    } else if (stmt instanceof Stmt.Function) {
+      renumber(((Stmt.Function)stmt).body, level + 1, renumbered);
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      renumber(ifStmt.condition, level, renumbered);
+      renumber(ifStmt.thenStmt, level, renumbered);
+      if (ifStmt.elseStmt != null) renumber(ifStmt.elseStmt, level, renumbered);
+    } else if (stmt instanceof Stmt.While) {
+      renumber(((Stmt.While)stmt).condition, level, renumbered);
+      renumber(((Stmt.While)stmt).body, level, renumbered);
+    }
+  }
+  private static void renumber(Expr expr, int level, IntUnaryOperator renumbered) {
+    if (expr instanceof Expr.Variable && ((Expr.Variable)expr).depth == level) {
+      ((Expr.Variable)expr).slot = renumbered.applyAsInt(((Expr.Variable)expr).slot);
+    } else if (expr instanceof Expr.Assign && ((Expr.Assign)expr).depth == level) {
+      ((Expr.Assign)expr).slot = renumbered.applyAsInt(((Expr.Assign)expr).slot);
+    } else if (expr instanceof Expr.Lambda) {
+      renumber(((Expr.Lambda)expr).function.body, level + 1, renumbered);
+    }
+    for (Expr child : Inliner.children(expr)) {
+      renumber(child, level, renumbered);
+    }
+  }
+  private List<Stmt> statements(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>();
+    for (Stmt statement : statements) {
+      result.add(statement.accept(this));
+    }
+    return result;
+  }
+  private Expr rewrite(Expr expr) {
+    return expr.accept(this);
+  }
+  private List<Expr> rewriteExprs(List<Expr> exprs) {
+    List<Expr> result = new ArrayList<>();
+    for (Expr expr : exprs) {
+      result.add(rewrite(expr));
+    }
+    return result;
+  }
+
+  // working out which expressions are the same.
+
+  private List<Object> variable(Token identifier, int depth, int slot) {
+    if (depth == Resolver.GLOBAL) return global(identifier);
+    // locals are told apart by which scope they are in, as the same slot of sibling blocks is a different variable.
+    if (depth < scopes.size()) return Arrays.asList("local", scopes.get(scopes.size() - 1 - depth), slot);
+    return Arrays.asList("outer", depth - scopes.size(), slot);
+  }
+  private static List<Object> global(Token identifier) {
+    return Arrays.asList("global", identifier.symbol);
+  }
+  /**
+   * @return The key of expr, if it is pure, otherwise null.
+   */
+  private Key key(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)expr).value;
+      return new Key("literal", value);
+    }
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      List<Object> read = variable(variable.identifier, variable.depth, variable.slot);
+      Key key = new Key("variable", read);
+      key.reads.add(read);
+      return key;
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      // adding two arrays makes a new array every time, which each use has to get its own of.
+      if (binary.operator.type == TokenType.PLUS
+          && !(Optimizer.isNumberOrString(binary.left) && Optimizer.isNumberOrString(binary.right))) {
+        return null;
+      }
+      return combine(binary.operator.type, key(binary.left), key(binary.right));
+    }
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      Key right = key(unary.right);
+      if (right == null) return null;
+      Key key = new Key(unary.operator.type, right.structure);
+      key.reads.addAll(right.reads);
+      key.subscripts = right.subscripts;
+      return key;
+    }
+    if (expr instanceof Expr.Subscript) {
+      Expr.Subscript subscript = (Expr.Subscript)expr;
+      Key key = combine("[]", key(subscript.subscriptee), key(subscript.index));
+      if (key != null) key.subscripts = true;
+      return key;
+    }
+    return null;
+  }
+  private static Key combine(Object operator, Key left, Key right) {
+    if (left == null || right == null) return null;
+    Key key = new Key(operator, left.structure, right.structure);
+    key.reads.addAll(left.reads);
+    key.reads.addAll(right.reads);
+    key.subscripts = left.subscripts || right.subscripts;
+    return key;
+  }
+  /**
+   * @return What to use in place of expr, if the same expression is already available, otherwise null.
+   */
+  private Expr reuse(Expr expr) {
+    Key key = key(expr);
+    if (key == null) return null;
+    Available found = available.get(key.structure);
+    if (found == null) return null;
+    if (!rewriting) {
+      reused.add(found.origin);
+      return expr;
+    }
+    return read(found.saved);
+  }
+  /**
+   * Makes expr (rewritten as rewritten) available from now on, saving its value if it is used again.
+   */
+  private Expr remember(Expr expr, Expr rewritten) {
+    Key key = key(expr);
+    if (key == null) return rewritten;
+    Available entry = new Available(expr, key);
+    available.put(key.structure, entry);
+    if (!rewriting || !reused.contains(expr)) return rewritten;
+    Token save = new Token(TokenType.IDENTIFIER, "(common subexpression " + saveCount++ + ")", null, 0);
+    Expr.Variable saved = new Expr.Variable(save);
+    if (function != null) {
+      saved.slot = function.size + saves.size(); // for now, see function().
+    }
+    saves.add(save);
+    entry.saved = saved;
+    Expr.Assign assign = new Expr.Assign(save, rewritten);
+    assign.depth = depth();
+    assign.slot = saved.slot;
+    return assign;
+  }
+  /**
+   * A read of a saved value, from wherever we are now.
+   */
+  private Expr read(Expr.Variable saved) {
+    Expr.Variable read = new Expr.Variable(saved.identifier);
+    read.depth = depth();
+    read.slot = saved.slot;
+    return read;
+  }
+  private int depth() {
+    // saved values are kept in the function's own scope, or as globals at the top level.
+    return function == null ? Resolver.GLOBAL : scopes.size() - 1;
+  }
+  private void kill(List<Object> variable) {
+    available.values().removeIf(entry -> entry.key.reads.contains(variable));
+  }
+  private void killSubscripts() {
+    available.values().removeIf(entry -> entry.key.subscripts);
+  }
+  /**
+   * Keeps only what is available both now and in other, for after two paths join again.
+   */
+  private void join(Map<List<Object>, Available> other) {
+    Iterator<Map.Entry<List<Object>, Available>> entries = available.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<List<Object>, Available> entry = entries.next();
+      if (other.get(entry.getKey()) != entry.getValue()) entries.remove();
+    }
+  }
+  private void declare(Token identifier) {
+    // at the top level, a declaration can be a re-declaration of a global.
+    if (function == null && scopes.size() == 1) kill(global(identifier));
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    return new Stmt.Expression(rewrite(stmt.expression));
+  }
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.identifier);
+    // a function's body is gone through on its own, when rewriting the function it is in.
+    return rewriting ? function(stmt) : stmt;
+  }
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(rewrite(stmt.expression));
+  }
+  @Override
+  public Stmt visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    Expr initialiser = stmt.initialiser == null ? null : rewrite(stmt.initialiser);
+    declare(stmt.identifier);
+    return new Stmt.VarDeclaration(stmt.identifier, initialiser);
+  }
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    scopes.add(scopeCount++);
+    Stmt.Block block = new Stmt.Block(statements(stmt.statements));
+    scopes.remove(scopes.size() - 1);
+    block.size = stmt.size;
+    return block;
+  }
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Map<List<Object>, Available> before = new HashMap<>(available);
+    Stmt thenStmt = stmt.thenStmt.accept(this);
+    Map<List<Object>, Available> afterThen = available;
+    available = before;
+    Stmt elseStmt = stmt.elseStmt == null ? null : stmt.elseStmt.accept(this);
+    join(afterThen);
+    return new Stmt.If(condition, thenStmt, elseStmt);
+  }
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    // the loop's body could change anything before the condition is worked out again.
+    available.clear();
+    Expr condition = rewrite(stmt.condition);
+    Stmt body = stmt.body.accept(this);
+    available.clear();
+    return new Stmt.While(condition, body);
+  }
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+    Stmt.Return rewritten = new Stmt.Return(stmt.keyword, rewrite(stmt.value));
+    rewritten.tailCall = stmt.tailCall;
+    return rewritten;
+  }
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr reused = reuse(expr);
+    if (reused != null) return reused;
+    return remember(expr, new Expr.Binary(rewrite(expr.left), expr.operator, rewrite(expr.right)));
+  }
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr reused = reuse(expr);
+    if (reused != null) return reused;
+    return remember(expr, new Expr.Unary(expr.operator, rewrite(expr.right)));
+  }
+  @Override
+  public Expr visitSubscriptExpr(Expr.Subscript expr) {
+    Expr reused = reuse(expr);
+    if (reused != null) return reused;
+    return remember(expr, new Expr.Subscript(rewrite(expr.subscriptee), expr.bracket, rewrite(expr.index)));
+  }
+  @Override
+  public Expr visitLogicExpr(Expr.Logic expr) {
+    Expr left = rewrite(expr.left);
+    // the right might not be worked out at all.
+    Map<List<Object>, Available> before = new HashMap<>(available);
+    Expr right = rewrite(expr.right);
+    join(before);
+    return new Expr.Logic(left, expr.operator, right);
+  }
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr.Assign assign = new Expr.Assign(expr.identifier, rewrite(expr.value));
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    kill(variable(expr.identifier, expr.depth, expr.slot));
+    return assign;
+  }
+  @Override
+  public Expr visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    Expr.SubscriptAssign assign = new Expr.SubscriptAssign(rewrite(expr.subscriptee), expr.bracket, rewrite(expr.index), rewrite(expr.value));
+    killSubscripts();
+    return assign;
+  }
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr.Call call = new Expr.Call(rewrite(expr.callee), expr.paren, rewriteExprs(expr.arguments));
+    call.inlined = expr.inlined;
+    // whatever is called could change anything it can see.
+    available.clear();
+    return call;
+  }
+  @Override
+  public Expr visitArrayExpr(Expr.Array expr) {
+    return new Expr.Array(rewriteExprs(expr.values));
+  }
+  @Override
+  public Expr visitDictionaryExpr(Expr.Dictionary expr) {
+    return new Expr.Dictionary(rewriteExprs(expr.dictionary));
+  }
+  @Override
+  public Expr visitLambdaExpr(Expr.Lambda expr) {
+    return rewriting ? new Expr.Lambda(function(expr.function)) : expr;
+  }
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return rewrite(expr.expression);
+  }
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    // already saved by the Hoister.
+    return expr;
+  }
+}
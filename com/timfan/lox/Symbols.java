@@ -0,0 +1,37 @@
+package com.timfan.lox;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+/**
+ * The table of every identifier's name, each given a dense id (0, 1, 2, ...) the first time
+ * it is interned, and the same id, and the same String, every time after that.
+ *
+ * the Scanner interns every identifier it scans (see Token.symbol), so that from then on the Resolver's scopes
+ * and the global environment can look a name up by its id, an index into an array,
+ * rather than by hashing and comparing its characters.
+ *
+ * it is shared by the whole of a run, so that the REPL's later lines get the same ids for the same names.
+ */
+final class Symbols {
+  private static final Map<String, Integer> ids = new HashMap<>();
+  private static final List<String> names = new ArrayList<>();
+
+  private Symbols() {}
+  /**
+   * @return The id of name, given it now if it hasn't got one yet.
+   */
+  static synchronized int intern(String name) {
+    Integer id = ids.get(name);
+    if (id != null) return id;
+    names.add(name);
+    ids.put(name, names.size() - 1);
+    return names.size() - 1;
+  }
+  /**
+   * @return The name whose id is symbol, the one String kept for it.
+   */
+  static synchronized String name(int symbol) {
+    return names.get(symbol);
+  }
+}
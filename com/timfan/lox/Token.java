@@ -1,10 +1,15 @@
 package com.timfan.lox;
 
-class Token {
-  final TokenType type;
-  final String lexeme;
-  final Object literal;
-  final int line; 
+public class Token {
+  public final TokenType type;
+  public final String lexeme;
+  public final Object literal;
+  public final int line; 
+  /**
+   * the identifier's id in Symbols, or NO_SYMBOL if this isn't an identifier.
+   */
+  public final int symbol;
+  static final int NO_SYMBOL = -1;
 
   /**
    * 
@@ -14,10 +19,14 @@ class Token {
    * @param line
    */
   Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, type == TokenType.IDENTIFIER ? Symbols.intern(lexeme) : NO_SYMBOL);
+  }
+  Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = symbol;
   }
 
   public String toString() {
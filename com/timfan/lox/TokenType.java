@@ -1,6 +1,6 @@
 package com.timfan.lox;
 
-enum TokenType {
+public enum TokenType {
   // Single-character tokens.
   LEFT_BRACKET, RIGHT_BRACKET, LEFT_PAREN, RIGHT_PAREN, 
   LEFT_BRACE, RIGHT_BRACE,
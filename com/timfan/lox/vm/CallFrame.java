@@ -0,0 +1,11 @@
+package com.timfan.lox.vm;
+
+/**
+ * One ongoing call of a Closure. Its callee is at stack[base], and its locals (starting with 
+ * its arguments) follow straight after.
+ */
+final class CallFrame {
+  Closure closure;
+  int ip; // where in closure's code to continue from, once the call this frame is making returns.
+  int base;
+}
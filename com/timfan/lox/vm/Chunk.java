@@ -0,0 +1,50 @@
+package com.timfan.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.timfan.lox.Token;
+
+/**
+ * A function's compiled code: its instructions, and the constants those instructions refer to.
+ *
+ * alongside each int of code we also keep the token it was compiled from, so that when an 
+ * instruction fails at runtime, the RuntimeError can point at the same line the tree-walk 
+ * interpreter would have.
+ */
+final class Chunk {
+  int[] code = new int[16];
+  Token[] tokens = new Token[16];
+  int count = 0;
+  Object[] constants;
+  private final List<Object> constantList = new ArrayList<>();
+  /**
+   * @return The offset that value was written to.
+   */
+  int write(int value, Token token) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+    code[count] = value;
+    tokens[count] = token;
+    return count++;
+  }
+  int addConstant(Object value) {
+    // the same token or string tends to be used over and over in a function, share its constant.
+    for (int i = 0; i < constantList.size(); i++) {
+      if (constantList.get(i) == value) return i;
+    }
+    constantList.add(value);
+    return constantList.size() - 1;
+  }
+  /**
+   * Called once the compiler has finished with this chunk, trims it down for the VM.
+   */
+  void finish() {
+    code = Arrays.copyOf(code, count);
+    tokens = Arrays.copyOf(tokens, count);
+    constants = constantList.toArray();
+  }
+}
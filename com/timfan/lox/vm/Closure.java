@@ -0,0 +1,60 @@
+package com.timfan.lox.vm;
+
+import java.util.List;
+
+import com.timfan.lox.Interpreter;
+import com.timfan.lox.LoxCallable;
+import com.timfan.lox.Token;
+
+/**
+ * A Prototype, together with the upvalues it captured when its declaration was executed.
+ *
+ * Closures are LoxCallables, so that the natives (map, filter, reduce) can call back into them, 
+ * just as they call back into a LoxFunction when running on the tree-walk interpreter.
+ */
+final class Closure implements LoxCallable {
+  final VM vm;
+  final Prototype prototype;
+  final Upvalue[] upvalues;
+  Closure(VM vm, Prototype prototype) {
+    this.vm = vm;
+    this.prototype = prototype;
+    this.upvalues = new Upvalue[prototype.upvalueCount];
+  }
+  @Override
+  public int arity() {
+    return prototype.arity;
+  }
+  @Override
+  public boolean isPure() {
+    return prototype.pure;
+  }
+  @Override
+  public Token ownGlobal() {
+    return prototype.ownGlobal;
+  }
+  @Override
+  public Object call(Interpreter interpreter, List<Object> arguments) {
+    return vm.call(this, arguments);
+  }
+  @Override
+  public Object call0(Interpreter interpreter) {
+    return vm.call(this, 0, null, null, null);
+  }
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    return vm.call(this, 1, a, null, null);
+  }
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    return vm.call(this, 2, a, b, null);
+  }
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return vm.call(this, 3, a, b, c);
+  }
+  @Override
+  public String toString() {
+    return prototype.toString();
+  }
+}
@@ -0,0 +1,482 @@
+package com.timfan.lox.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.timfan.lox.Expr;
+import com.timfan.lox.Resolver;
+import com.timfan.lox.Stmt;
+import com.timfan.lox.Token;
+import com.timfan.lox.TokenType;
+
+/**
+ * Compiles resolved statements into a Prototype for the VM to run.
+ *
+ * the compiler keeps the same stack of scopes that the Resolver did (one for each block, and one
+ * for each function's params and body), so that it can use the (depth, slot) pair the Resolver wrote
+ * onto each Expr.Variable and Expr.Assign to find the declaration the user intended.
+ * a declaration in the current function is a slot on the VM's stack, and a declaration
+ * in an enclosing function is captured as an upvalue.
+ */
+public final class Compiler implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  private static final class FunctionState {
+    final FunctionState enclosing;
+    final Prototype prototype;
+    final Chunk chunk;
+    final List<Boolean> captured = new ArrayList<>(); // whether each stack slot's local has been captured.
+    final List<int[]> upvalues = new ArrayList<>(); // (isLocal, index) for each upvalue.
+    int localCount = 0;
+    int stackDepth = 0; // how many stack slots are in use at the point we are compiling.
+    Loop loop = null; // the innermost loop we are compiling, if there is one.
+    FunctionState(FunctionState enclosing, Prototype prototype) {
+      this.enclosing = enclosing;
+      this.prototype = prototype;
+      this.chunk = prototype.chunk;
+      // stack slot 0 of every call holds the closure being called.
+      addLocal();
+      stackDepth = 1;
+    }
+    int addLocal() {
+      if (captured.size() == localCount) {
+        captured.add(false);
+      } else {
+        captured.set(localCount, false);
+      }
+      return localCount++;
+    }
+  }
+  private static final class Scope {
+    final FunctionState function;
+    final int base; // the stack slot of this scope's first declaration.
+    Scope(FunctionState function, int base) {
+      this.function = function;
+      this.base = base;
+    }
+  }
+  private static final class Loop {
+    final Loop enclosing;
+    final int start; // where continue jumps back to.
+    final int localCount; // how many locals there were outside of the loop's body.
+    final List<Integer> breaks = new ArrayList<>(); // jumps to patch once we know where the loop ends.
+    Loop(Loop enclosing, int start, int localCount) {
+      this.enclosing = enclosing;
+      this.start = start;
+      this.localCount = localCount;
+    }
+  }
+  private final List<Scope> scopes = new ArrayList<>();
+  private FunctionState current = null;
+
+  /**
+   * @return The top-level script, as a function taking no arguments.
+   */
+  public Prototype compile(List<Stmt> statements) {
+    current = new FunctionState(null, new Prototype("script", 0));
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+    emit(OpCode.NIL, null, 1);
+    emit(OpCode.RETURN, null, -1);
+    return finish();
+  }
+  private Prototype finish() {
+    Prototype prototype = current.prototype;
+    prototype.upvalueCount = current.upvalues.size();
+    prototype.chunk.finish();
+    current = current.enclosing;
+    return prototype;
+  }
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+  /**
+   * @param stackEffect how many values the instruction leaves on the stack, minus how many it takes off.
+   * @return The offset the instruction was written to.
+   */
+  private int emit(int op, Token token, int stackEffect) {
+    int offset = current.chunk.write(op, token);
+    current.stackDepth += stackEffect;
+    if (current.stackDepth > current.prototype.maxStack) {
+      current.prototype.maxStack = current.stackDepth;
+    }
+    return offset;
+  }
+  private int emit(int op, int operand, Token token, int stackEffect) {
+    int offset = emit(op, token, stackEffect);
+    current.chunk.write(operand, token);
+    return offset;
+  }
+  private void emitConstant(Object value, Token token) {
+    emit(OpCode.CONSTANT, current.chunk.addConstant(value), token, 1);
+  }
+  /**
+   * @return The offset of the jump's target operand, to be patched once the target is known.
+   */
+  private int emitJump(int op, Token token, int stackEffect) {
+    return emit(op, -1, token, stackEffect) + 1;
+  }
+  private void patchJump(int operand) {
+    current.chunk.code[operand] = current.chunk.count;
+  }
+
+  private void beginScope() {
+    scopes.add(new Scope(current, current.localCount));
+  }
+  private void endScope() {
+    Scope scope = scopes.remove(scopes.size() - 1);
+    while (current.localCount > scope.base) {
+      current.localCount--;
+      if (current.captured.get(current.localCount)) {
+        emit(OpCode.CLOSE_UPVALUE, null, -1);
+      } else {
+        emit(OpCode.POP, null, -1);
+      }
+    }
+  }
+  /**
+   * Pops (closing any captured upvalues) every local down to localCount, for when control leaves
+   * scopes early, like a break. the locals stay declared, since compiling carries on after the jump.
+   */
+  private void discardLocals(int localCount) {
+    int depth = current.stackDepth;
+    for (int i = current.localCount - 1; i >= localCount; i--) {
+      emit(OpCode.CLOSE_UPVALUE, null, -1);
+    }
+    current.stackDepth = depth;
+  }
+  private boolean isGlobalScope() {
+    return scopes.isEmpty();
+  }
+  /**
+   * Declaring into the current local scope. The value it starts with has to be the
+   * value on top of the stack, by the time the next statement is compiled.
+   */
+  private void declareLocal() {
+    current.addLocal();
+  }
+
+  /**
+   * Emits the instruction to get (or set) the variable a resolved Expr.Variable (or Expr.Assign) refers to.
+   */
+  private void emitVariable(boolean isGet, Token identifier, int depth, int slot) {
+    if (depth == Resolver.GLOBAL) {
+      int constant = current.chunk.addConstant(identifier);
+      emit(isGet ? OpCode.GET_GLOBAL : OpCode.SET_GLOBAL, constant, identifier, isGet ? 1 : 0);
+      return;
+    }
+    Scope scope = scopes.get(scopes.size() - 1 - depth);
+    int index = scope.base + slot;
+    if (scope.function == current) {
+      emit(isGet ? OpCode.GET_LOCAL : OpCode.SET_LOCAL, index, identifier, isGet ? 1 : 0);
+    } else {
+      int upvalue = resolveUpvalue(current, scope.function, index);
+      emit(isGet ? OpCode.GET_UPVALUE : OpCode.SET_UPVALUE, upvalue, identifier, isGet ? 1 : 0);
+    }
+  }
+  /**
+   * @return function's upvalue index for the stack slot index of owner, capturing it
+   * in each function in between if they haven't already.
+   */
+  private int resolveUpvalue(FunctionState function, FunctionState owner, int index) {
+    if (function.enclosing == owner) {
+      owner.captured.set(index, true);
+      return addUpvalue(function, true, index);
+    }
+    return addUpvalue(function, false, resolveUpvalue(function.enclosing, owner, index));
+  }
+  private int addUpvalue(FunctionState function, boolean isLocal, int index) {
+    for (int i = 0; i < function.upvalues.size(); i++) {
+      int[] upvalue = function.upvalues.get(i);
+      if (upvalue[0] == (isLocal ? 1 : 0) && upvalue[1] == index) return i;
+    }
+    function.upvalues.add(new int[] { isLocal ? 1 : 0, index });
+    return function.upvalues.size() - 1;
+  }
+  /**
+   * Compiles the function's params and body into their own Prototype, and emits the
+   * instruction that makes a Closure out of it.
+   */
+  private void function(Stmt.Function stmt) {
+    current = new FunctionState(current, new Prototype(stmt.identifier.lexeme, stmt.params.size()));
+    current.prototype.pure = stmt.pure;
+    if (stmt.callsOwnGlobal) current.prototype.ownGlobal = stmt.identifier;
+    beginScope();
+    for (int i = 0; i < stmt.params.size(); i++) {
+      declareLocal();
+    }
+    current.stackDepth = current.localCount;
+    for (Stmt statement : stmt.body) {
+      compile(statement);
+    }
+    // function call finished without any explicit return statement.
+    emit(OpCode.NIL, null, 1);
+    emit(OpCode.RETURN, null, -1);
+    scopes.remove(scopes.size() - 1); // no need to pop the locals, returning discards them.
+    FunctionState function = current;
+    Prototype prototype = finish();
+
+    emit(OpCode.CLOSURE, current.chunk.addConstant(prototype), stmt.identifier, 1);
+    for (int[] upvalue : function.upvalues) {
+      current.chunk.write(upvalue[0], stmt.identifier);
+      current.chunk.write(upvalue[1], stmt.identifier);
+    }
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emit(OpCode.POP, null, -1);
+    return null;
+  }
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    if (isGlobalScope()) {
+      function(stmt);
+      emit(OpCode.DEFINE_GLOBAL, current.chunk.addConstant(stmt.identifier), stmt.identifier, -1);
+    } else {
+      // declared before its body is compiled, so that the body can refer to itself.
+      declareLocal();
+      function(stmt);
+    }
+    return null;
+  }
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OpCode.PRINT, null, -1);
+    return null;
+  }
+  @Override
+  public Void visitVarDeclarationStmt(Stmt.VarDeclaration stmt) {
+    if (stmt.initialiser != null) {
+      compile(stmt.initialiser);
+    } else {
+      emit(OpCode.NIL, stmt.identifier, 1);
+    }
+    if (isGlobalScope()) {
+      emit(OpCode.DEFINE_GLOBAL, current.chunk.addConstant(stmt.identifier), stmt.identifier, -1);
+    } else {
+      // the initialiser's value is left on the stack, as the local's slot.
+      declareLocal();
+    }
+    return null;
+  }
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int elseJump = emitJump(OpCode.JUMP_IF_FALSE, null, -1);
+    compile(stmt.thenStmt);
+    if (stmt.elseStmt == null) {
+      patchJump(elseJump);
+      return null;
+    }
+    int endJump = emitJump(OpCode.JUMP, null, 0);
+    patchJump(elseJump);
+    compile(stmt.elseStmt);
+    patchJump(endJump);
+    return null;
+  }
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Loop loop = new Loop(current.loop, current.chunk.count, current.localCount);
+    current.loop = loop;
+    compile(stmt.condition);
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE, null, -1);
+    compile(stmt.body);
+    emit(OpCode.JUMP, loop.start, null, 0);
+    patchJump(exitJump);
+    for (int breakJump : loop.breaks) {
+      patchJump(breakJump);
+    }
+    current.loop = loop.enclosing;
+    return null;
+  }
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      // the call can take over this function's frame, rather than pushing one of its own (see VM.run),
+      // which leaves the RETURN after it only for when the callee turns out to be a native.
+      Expr.Call call = (Expr.Call)stmt.value;
+      compile(call.callee);
+      for (Expr argument : call.arguments) {
+        compile(argument);
+      }
+      emit(OpCode.TAIL_CALL, call.arguments.size(), call.paren, -call.arguments.size());
+    } else if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      emit(OpCode.NIL, stmt.keyword, 1);
+    }
+    emit(OpCode.RETURN, stmt.keyword, -1);
+    return null;
+  }
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    // the Resolver has made sure we are inside a loop of this function.
+    discardLocals(current.loop.localCount);
+    current.loop.breaks.add(emitJump(OpCode.JUMP, stmt.keyword, 0));
+    return null;
+  }
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    discardLocals(current.loop.localCount);
+    emit(OpCode.JUMP, current.loop.start, stmt.keyword, 0);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+    int op;
+    switch (expr.operator.type) {
+      case TokenType.PLUS:          op = OpCode.ADD; break;
+      case TokenType.MINUS:         op = OpCode.SUBTRACT; break;
+      case TokenType.STAR:          op = OpCode.MULTIPLY; break;
+      case TokenType.SLASH:         op = OpCode.DIVIDE; break;
+      case TokenType.LESS:          op = OpCode.LESS; break;
+      case TokenType.GREATER:       op = OpCode.GREATER; break;
+      case TokenType.LESS_EQUAL:    op = OpCode.LESS_EQUAL; break;
+      case TokenType.GREATER_EQUAL: op = OpCode.GREATER_EQUAL; break;
+      case TokenType.EQUAL_EQUAL:   op = OpCode.EQUAL; break;
+      case TokenType.BANG_EQUAL:    op = OpCode.NOT_EQUAL; break;
+      default:
+        // control should not reach here...
+        throw new IllegalStateException("Unexpected binary operator " + expr.operator.lexeme);
+    }
+    emit(op, expr.operator, -1);
+    return null;
+  }
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    compile(expr.callee);
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    emit(OpCode.CALL, expr.arguments.size(), expr.paren, -expr.arguments.size());
+    return null;
+  }
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emit(OpCode.NIL, null, 1);
+    } else if (expr.value.equals(Boolean.TRUE)) {
+      emit(OpCode.TRUE, null, 1);
+    } else if (expr.value.equals(Boolean.FALSE)) {
+      emit(OpCode.FALSE, null, 1);
+    } else {
+      emitConstant(expr.value, null);
+    }
+    return null;
+  }
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    switch (expr.operator.type) {
+      case TokenType.MINUS: emit(OpCode.NEGATE, expr.operator, 0); break;
+      case TokenType.BANG:  emit(OpCode.NOT, expr.operator, 0); break;
+      default:
+        // control should not reach here...
+        throw new IllegalStateException("Unexpected unary operator " + expr.operator.lexeme);
+    }
+    return null;
+  }
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    emitVariable(true, expr.identifier, expr.depth, expr.slot);
+    return null;
+  }
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    emitVariable(false, expr.identifier, expr.depth, expr.slot);
+    return null;
+  }
+  @Override
+  public Void visitLogicExpr(Expr.Logic expr) {
+    // like the interpreter, a logic expression always results in a Boolean.
+    int depth = current.stackDepth;
+    compile(expr.left);
+    int shortCircuit = emitJump(OpCode.JUMP_IF_FALSE, expr.operator, -1);
+    if (expr.operator.type == TokenType.AND) {
+      compile(expr.right);
+      emit(OpCode.TRUTHY, expr.operator, 0);
+      int endJump = emitJump(OpCode.JUMP, expr.operator, 0);
+      patchJump(shortCircuit);
+      emit(OpCode.FALSE, expr.operator, 0);
+      patchJump(endJump);
+    } else /* if type is OR */ {
+      emit(OpCode.TRUE, expr.operator, 1);
+      int endJump = emitJump(OpCode.JUMP, expr.operator, 0);
+      patchJump(shortCircuit);
+      current.stackDepth--;
+      compile(expr.right);
+      emit(OpCode.TRUTHY, expr.operator, 0);
+      patchJump(endJump);
+    }
+    current.stackDepth = depth + 1;
+    return null;
+  }
+  @Override
+  public Void visitArrayExpr(Expr.Array expr) {
+    for (Expr value : expr.values) {
+      compile(value);
+    }
+    emit(OpCode.ARRAY, expr.values.size(), null, 1 - expr.values.size());
+    return null;
+  }
+  @Override
+  public Void visitDictionaryExpr(Expr.Dictionary expr) {
+    for (Expr value : expr.dictionary) {
+      compile(value);
+    }
+    emit(OpCode.DICTIONARY, expr.dictionary.size() / 2, null, 1 - expr.dictionary.size());
+    return null;
+  }
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    // the hoisted value isn't kept, the expression is just worked out every time, which gives the same value.
+    compile(expr.store.value);
+    return null;
+  }
+  @Override
+  public Void visitSubscriptExpr(Expr.Subscript expr) {
+    compile(expr.subscriptee);
+    emit(OpCode.CHECK_SUBSCRIPTABLE, expr.bracket, 0);
+    compile(expr.index);
+    emit(OpCode.GET_SUBSCRIPT, expr.bracket, -1);
+    return null;
+  }
+  @Override
+  public Void visitSubscriptAssignExpr(Expr.SubscriptAssign expr) {
+    compile(expr.subscriptee);
+    emit(OpCode.CHECK_SUBSCRIPTABLE, expr.bracket, 0);
+    compile(expr.index);
+    emit(OpCode.CHECK_INDEX, expr.bracket, 0);
+    compile(expr.value);
+    emit(OpCode.SET_SUBSCRIPT, expr.bracket, -2);
+    return null;
+  }
+  @Override
+  public Void visitLambdaExpr(Expr.Lambda expr) {
+    function(expr.function);
+    return null;
+  }
+}
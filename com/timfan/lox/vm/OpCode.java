@@ -0,0 +1,48 @@
+package com.timfan.lox.vm;
+
+/**
+ * The instructions the VM understands. Each instruction is one int in a Chunk's code, 
+ * followed by however many int operands that instruction needs (shown after each opcode).
+ */
+final class OpCode {
+  private OpCode() {}
+  static final int CONSTANT            = 0;  // constant index. push the constant.
+  static final int NIL                 = 1;
+  static final int TRUE                = 2;
+  static final int FALSE               = 3;
+  static final int POP                 = 4;
+  static final int GET_LOCAL           = 5;  // stack slot, relative to the frame.
+  static final int SET_LOCAL           = 6;  // stack slot, relative to the frame.
+  static final int GET_UPVALUE         = 7;  // upvalue index.
+  static final int SET_UPVALUE         = 8;  // upvalue index.
+  static final int GET_GLOBAL          = 9;  // constant index of the identifier token.
+  static final int SET_GLOBAL          = 10; // constant index of the identifier token.
+  static final int DEFINE_GLOBAL       = 11; // constant index of the identifier token.
+  static final int ADD                 = 12;
+  static final int SUBTRACT            = 13;
+  static final int MULTIPLY            = 14;
+  static final int DIVIDE              = 15;
+  static final int LESS                = 16;
+  static final int GREATER             = 17;
+  static final int LESS_EQUAL          = 18;
+  static final int GREATER_EQUAL       = 19;
+  static final int EQUAL               = 20;
+  static final int NOT_EQUAL           = 21;
+  static final int NEGATE              = 22;
+  static final int NOT                 = 23;
+  static final int TRUTHY              = 24; // replace the top of stack with its truthiness, as a Boolean.
+  static final int PRINT               = 25;
+  static final int JUMP                = 26; // absolute target.
+  static final int JUMP_IF_FALSE       = 27; // absolute target. pops the condition.
+  static final int CALL                = 28; // argument count.
+  static final int CLOSURE             = 29; // constant index of the Prototype, then (isLocal, index) per upvalue.
+  static final int CLOSE_UPVALUE       = 30;
+  static final int RETURN              = 31;
+  static final int ARRAY               = 32; // element count.
+  static final int DICTIONARY          = 33; // entry count.
+  static final int CHECK_SUBSCRIPTABLE = 34;
+  static final int GET_SUBSCRIPT       = 35;
+  static final int CHECK_INDEX         = 36;
+  static final int SET_SUBSCRIPT       = 37;
+  static final int TAIL_CALL           = 38; // argument count. a CALL whose result is returned straight away.
+}
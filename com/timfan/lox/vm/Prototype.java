@@ -0,0 +1,25 @@
+package com.timfan.lox.vm;
+
+import com.timfan.lox.Token;
+
+/**
+ * A compiled function declaration, lambda, or top-level script. 
+ * A Prototype is just code, each time the declaration is executed a new Closure is made from it.
+ */
+final class Prototype {
+  final String name;
+  final int arity;
+  final Chunk chunk = new Chunk();
+  int upvalueCount = 0;
+  int maxStack = 0; // the most stack slots a call of this function uses at once, including the callee and locals.
+  boolean pure = false; // see Stmt.Function.pure.
+  Token ownGlobal = null; // see LoxCallable.ownGlobal.
+  Prototype(String name, int arity) {
+    this.name = name;
+    this.arity = arity;
+  }
+  @Override
+  public String toString() {
+    return "<fn " + name + ">";
+  }
+}
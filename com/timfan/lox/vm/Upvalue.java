@@ -0,0 +1,19 @@
+package com.timfan.lox.vm;
+
+/**
+ * A local variable that a closure has captured.
+ *
+ * while the local variable is still on the VM's stack, the upvalue is open and refers 
+ * to the variable's stack slot. once the variable goes out of scope, the upvalue is closed, 
+ * and the value moves into the upvalue itself, where every closure that captured it can still share it.
+ */
+final class Upvalue {
+  int index; // the stack slot, while open.
+  Object value; // the value, once closed.
+  boolean closed = false;
+  Upvalue next; // the next open upvalue, further down the stack.
+  Upvalue(int index, Upvalue next) {
+    this.index = index;
+    this.next = next;
+  }
+}
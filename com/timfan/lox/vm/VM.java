@@ -0,0 +1,471 @@
+package com.timfan.lox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.timfan.lox.Environment;
+import com.timfan.lox.Interpreter;
+import com.timfan.lox.Lox;
+import com.timfan.lox.LoxArray;
+import com.timfan.lox.LoxCallable;
+import com.timfan.lox.LoxDictionary;
+import com.timfan.lox.Operators;
+import com.timfan.lox.RuntimeError;
+import com.timfan.lox.Stmt;
+import com.timfan.lox.Token;
+
+/**
+ * A stack-based virtual machine, an alternative to the tree-walk Interpreter.
+ *
+ * rather than walking the Stmt and Expr trees every time they are run, the Compiler turns them into
+ * a flat array of instructions once, and the VM then runs those instructions in a single loop,
+ * keeping temporaries and local variables on its own stack, and each ongoing call in a CallFrame.
+ *
+ * the VM shares the interpreter's global environment, and so its natives,
+ * and it uses the same Operators, so a Lox program behaves the same on either engine.
+ *
+ * a call from one Lox function to another doesn't use the Java stack, only another CallFrame,
+ * so how deeply a program can recurse is up to maxDepth (and the heap), not the thread's stack size.
+ * and a tail call (a return of a call) doesn't even take another CallFrame, but reuses its caller's,
+ * so a function can recurse in tail position as deeply as it likes.
+ */
+public final class VM {
+  public static final int DEFAULT_MAX_DEPTH = 65536;
+  private final int maxDepth; // how many calls can be in progress at once, before a "Stack overflow." error.
+  private final Interpreter interpreter; // what the natives are given, when the VM calls them.
+  private final Environment globals;
+  private Object[] stack = new Object[256];
+  private int sp = 0; // the next free stack slot.
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  private Upvalue openUpvalues = null; // sorted, with the highest stack slot first.
+  public VM(Interpreter interpreter) {
+    this(interpreter, DEFAULT_MAX_DEPTH);
+  }
+  public VM(Interpreter interpreter, int maxDepth) {
+    this.maxDepth = maxDepth;
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = new CallFrame();
+    }
+  }
+  public void interpret(List<Stmt> statements) {
+    Prototype script = new Compiler().compile(statements);
+    sp = 0;
+    frameCount = 0;
+    openUpvalues = null;
+    try {
+      Closure closure = new Closure(this, script);
+      stack[sp++] = closure;
+      pushFrame(closure, null);
+      run(0);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+  /**
+   * Used by Closure.call, for when a native calls back into a Lox function.
+   */
+  Object call(Closure closure, List<Object> arguments) {
+    ensureStack(arguments.size() + 1);
+    stack[sp++] = closure;
+    for (Object argument : arguments) {
+      stack[sp++] = argument;
+    }
+    return enter(closure);
+  }
+  /**
+   * Used by Closure.call0 to call3, with the first count of a, b and c as the arguments.
+   */
+  Object call(Closure closure, int count, Object a, Object b, Object c) {
+    ensureStack(count + 1);
+    stack[sp++] = closure;
+    if (count > 0) stack[sp++] = a;
+    if (count > 1) stack[sp++] = b;
+    if (count > 2) stack[sp++] = c;
+    return enter(closure);
+  }
+  /**
+   * Runs a call of closure, whose callee and arguments a native has already put on top of the stack.
+   */
+  private Object enter(Closure closure) {
+    // blame the call of the native that is calling back, if this is one call too many.
+    CallFrame caller = frames[frameCount - 1];
+    Token paren = caller.closure.prototype.chunk.tokens[caller.ip - 1];
+    pushFrame(closure, paren);
+    return run(frameCount - 1);
+  }
+  /**
+   * Starts a call of closure, whose callee and arguments are already on top of the stack.
+   * @param paren the token to blame if there are too many calls in progress.
+   */
+  private void pushFrame(Closure closure, Token paren) {
+    // the script's own frame, at the bottom, isn't a call.
+    if (frameCount > maxDepth) {
+      throw new RuntimeError(paren, "Stack overflow.");
+    }
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, (int)Math.min((long)frameCount * 2, maxDepth + 1L));
+      for (int i = frameCount; i < frames.length; i++) {
+        frames[i] = new CallFrame();
+      }
+    }
+    CallFrame frame = frames[frameCount++];
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = sp - closure.prototype.arity - 1;
+    ensureStack(closure.prototype.maxStack);
+  }
+  private void ensureStack(int needed) {
+    if (sp + needed > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + needed));
+    }
+  }
+  /**
+   * Runs instructions until the frame at index exitFrame returns.
+   * @return What that frame returned.
+   */
+  private Object run(int exitFrame) {
+    CallFrame frame = frames[frameCount - 1];
+    Closure closure = frame.closure;
+    int[] code = closure.prototype.chunk.code;
+    Token[] tokens = closure.prototype.chunk.tokens;
+    Object[] constants = closure.prototype.chunk.constants;
+    Object[] stack = this.stack;
+    int ip = frame.ip;
+    int base = frame.base;
+    int sp = this.sp;
+    for (;;) {
+      switch (code[ip++]) {
+        case OpCode.CONSTANT:
+          stack[sp++] = constants[code[ip++]];
+          break;
+        case OpCode.NIL:
+          stack[sp++] = null;
+          break;
+        case OpCode.TRUE:
+          stack[sp++] = Boolean.TRUE;
+          break;
+        case OpCode.FALSE:
+          stack[sp++] = Boolean.FALSE;
+          break;
+        case OpCode.POP:
+          stack[--sp] = null;
+          break;
+        case OpCode.GET_LOCAL:
+          stack[sp++] = stack[base + code[ip++]];
+          break;
+        case OpCode.SET_LOCAL:
+          stack[base + code[ip++]] = stack[sp - 1];
+          break;
+        case OpCode.GET_UPVALUE: {
+          Upvalue upvalue = closure.upvalues[code[ip++]];
+          stack[sp++] = upvalue.closed ? upvalue.value : stack[upvalue.index];
+          break;
+        }
+        case OpCode.SET_UPVALUE: {
+          Upvalue upvalue = closure.upvalues[code[ip++]];
+          if (upvalue.closed) {
+            upvalue.value = stack[sp - 1];
+          } else {
+            stack[upvalue.index] = stack[sp - 1];
+          }
+          break;
+        }
+        case OpCode.GET_GLOBAL:
+          stack[sp++] = globals.get((Token)constants[code[ip++]]);
+          break;
+        case OpCode.SET_GLOBAL:
+          globals.assign((Token)constants[code[ip++]], stack[sp - 1]);
+          break;
+        case OpCode.DEFINE_GLOBAL: {
+          Token identifier = (Token)constants[code[ip++]];
+          globals.define(identifier, stack[--sp]);
+          stack[sp] = null;
+          break;
+        }
+        // arithmetic and comparisons on two numbers are by far the most common, so the VM does
+        // those itself, and leaves everything else (including reporting errors) to the Operators.
+        case OpCode.ADD: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left + (double)right;
+          } else {
+            stack[sp - 1] = Operators.add(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.SUBTRACT: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left - (double)right;
+          } else {
+            stack[sp - 1] = Operators.subtract(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.MULTIPLY: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left * (double)right;
+          } else {
+            stack[sp - 1] = Operators.multiply(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.DIVIDE: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left / (double)right;
+          } else {
+            stack[sp - 1] = Operators.divide(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.LESS: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left < (double)right;
+          } else {
+            stack[sp - 1] = Operators.less(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.GREATER: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left > (double)right;
+          } else {
+            stack[sp - 1] = Operators.greater(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.LESS_EQUAL: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left <= (double)right;
+          } else {
+            stack[sp - 1] = Operators.lessEqual(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.GREATER_EQUAL: {
+          Object right = stack[--sp];
+          Object left = stack[sp - 1];
+          if (left instanceof Double && right instanceof Double) {
+            stack[sp - 1] = (double)left >= (double)right;
+          } else {
+            stack[sp - 1] = Operators.greaterEqual(tokens[ip - 1], left, right);
+          }
+          break;
+        }
+        case OpCode.EQUAL:
+          sp--;
+          stack[sp - 1] = Operators.equal(tokens[ip - 1], stack[sp - 1], stack[sp]);
+          break;
+        case OpCode.NOT_EQUAL:
+          sp--;
+          stack[sp - 1] = Operators.notEqual(tokens[ip - 1], stack[sp - 1], stack[sp]);
+          break;
+        case OpCode.NEGATE:
+          stack[sp - 1] = Operators.negate(tokens[ip - 1], stack[sp - 1]);
+          break;
+        case OpCode.NOT:
+          stack[sp - 1] = Operators.not(stack[sp - 1]);
+          break;
+        case OpCode.TRUTHY:
+          stack[sp - 1] = Operators.isTruthy(stack[sp - 1]);
+          break;
+        case OpCode.PRINT:
+          System.out.println(Operators.stringify(stack[--sp]));
+          stack[sp] = null;
+          break;
+        case OpCode.JUMP:
+          ip = code[ip];
+          break;
+        case OpCode.JUMP_IF_FALSE: {
+          int target = code[ip++];
+          if (!Operators.isTruthy(stack[--sp])) ip = target;
+          stack[sp] = null;
+          break;
+        }
+        case OpCode.CALL:
+        case OpCode.TAIL_CALL: {
+          boolean isTailCall = code[ip - 1] == OpCode.TAIL_CALL;
+          int argumentCount = code[ip++];
+          Token paren = tokens[ip - 1];
+          Object callee = stack[sp - argumentCount - 1];
+          if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+          }
+          LoxCallable function = (LoxCallable)callee;
+          if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+          }
+          frame.ip = ip;
+          this.sp = sp;
+          if (isTailCall && callee instanceof Closure && ((Closure)callee).vm == this) {
+            // nothing is left for this frame to do, so the callee takes it over, moving
+            // itself and its arguments down to where this frame's callee and arguments were.
+            Closure target = (Closure)callee;
+            closeUpvalues(base);
+            System.arraycopy(stack, sp - argumentCount - 1, stack, base, argumentCount + 1);
+            Arrays.fill(stack, base + argumentCount + 1, sp, null);
+            sp = base + argumentCount + 1;
+            this.sp = sp;
+            ensureStack(target.prototype.maxStack);
+            frame.closure = target;
+            closure = target;
+            code = closure.prototype.chunk.code;
+            tokens = closure.prototype.chunk.tokens;
+            constants = closure.prototype.chunk.constants;
+            stack = this.stack;
+            ip = 0;
+          } else if (callee instanceof Closure && ((Closure)callee).vm == this) {
+            // a Lox function, run its code in a new frame of this same loop.
+            pushFrame((Closure)callee, paren);
+            frame = frames[frameCount - 1];
+            closure = frame.closure;
+            code = closure.prototype.chunk.code;
+            tokens = closure.prototype.chunk.tokens;
+            constants = closure.prototype.chunk.constants;
+            stack = this.stack;
+            ip = 0;
+            base = frame.base;
+          } else {
+            // a native, given its arguments straight off the stack if there are 3 or fewer (see LoxCallable).
+            Object result;
+            switch (argumentCount) {
+              case 0: result = function.call0(interpreter); break;
+              case 1: result = function.call1(interpreter, stack[sp - 1]); break;
+              case 2: result = function.call2(interpreter, stack[sp - 2], stack[sp - 1]); break;
+              case 3: result = function.call3(interpreter, stack[sp - 3], stack[sp - 2], stack[sp - 1]); break;
+              default:
+                result = function.call(interpreter, new ArrayList<>(Arrays.asList(stack).subList(sp - argumentCount, sp)));
+            }
+            // the native may have called back into the VM, and grown the stack.
+            stack = this.stack;
+            Arrays.fill(stack, sp - argumentCount, sp, null);
+            sp -= argumentCount;
+            stack[sp - 1] = result;
+          }
+          break;
+        }
+        case OpCode.CLOSURE: {
+          Closure function = new Closure(this, (Prototype)constants[code[ip++]]);
+          for (int i = 0; i < function.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++];
+            function.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+          }
+          stack[sp++] = function;
+          break;
+        }
+        case OpCode.CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          stack[--sp] = null;
+          break;
+        case OpCode.RETURN: {
+          Object result = stack[--sp];
+          closeUpvalues(base);
+          Arrays.fill(stack, base, sp, null);
+          sp = base;
+          frameCount--;
+          if (frameCount == exitFrame) {
+            this.sp = sp;
+            return result;
+          }
+          stack[sp++] = result;
+          frame = frames[frameCount - 1];
+          closure = frame.closure;
+          code = closure.prototype.chunk.code;
+          tokens = closure.prototype.chunk.tokens;
+          constants = closure.prototype.chunk.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case OpCode.ARRAY: {
+          int count = code[ip++];
+          List<Object> list = new ArrayList<>(count);
+          for (int i = sp - count; i < sp; i++) {
+            list.add(stack[i]);
+            stack[i] = null;
+          }
+          sp -= count;
+          stack[sp++] = new LoxArray(list);
+          break;
+        }
+        case OpCode.DICTIONARY: {
+          int count = code[ip++];
+          LoxDictionary dictionary = new LoxDictionary();
+          for (int i = sp - 2 * count; i < sp; i += 2) {
+            dictionary.put(stack[i], stack[i + 1]);
+            stack[i] = null;
+            stack[i + 1] = null;
+          }
+          sp -= 2 * count;
+          stack[sp++] = dictionary;
+          break;
+        }
+        case OpCode.CHECK_SUBSCRIPTABLE:
+          Operators.checkSubscriptable(tokens[ip - 1], stack[sp - 1]);
+          break;
+        case OpCode.GET_SUBSCRIPT:
+          sp--;
+          stack[sp - 1] = Operators.getSubscript(tokens[ip - 1], stack[sp - 1], stack[sp]);
+          stack[sp] = null;
+          break;
+        case OpCode.CHECK_INDEX:
+          Operators.checkSubscriptIndex(tokens[ip - 1], stack[sp - 2], stack[sp - 1]);
+          break;
+        case OpCode.SET_SUBSCRIPT: {
+          sp -= 2;
+          stack[sp - 1] = Operators.setSubscript(tokens[ip - 1], stack[sp - 1], stack[sp], stack[sp + 1]);
+          stack[sp] = null;
+          stack[sp + 1] = null;
+          break;
+        }
+        default:
+          // control should not reach here...
+          throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+      }
+    }
+  }
+  private Upvalue captureUpvalue(int index) {
+    Upvalue previous = null;
+    Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.index > index) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.index == index) return upvalue;
+    Upvalue created = new Upvalue(index, upvalue);
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+  /**
+   * Closes every open upvalue at or above the stack slot last.
+   */
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.index >= last) {
+      Upvalue upvalue = openUpvalues;
+      upvalue.value = stack[upvalue.index];
+      upvalue.closed = true;
+      openUpvalues = upvalue.next;
+    }
+  }
+}
@@ -16,30 +16,39 @@ public class GenerateAst {
     // contained inside Expr (as static classes), are subclasses Binary, Grouping, Literal, Unary,
     // each with their own fields (e.g., Object value, for the Literal class)
     // and own constructors and own methods.
+    //
+    // fields after a | are not passed to the constructor, and are not final. they are 
+    // left for the Resolver to fill in (e.g., how deep in the environment chain a Variable's 
+    // declaration is), so that the interpreter can just read them off the node.
+    // the interpreter fills in a Binary or Unary's specialization itself, as it runs (see Specialization).
+    // and the Inliner marks which Calls are of a function small enough to not really call (see Inliner).
+    // each Call keeps its own CallCache, made the first time it is called.
+    // an Invariant isn't parsed at all, but made by the Hoister, out of a part of a loop that doesn't change.
     defineAst(outputDir, "Expr", Arrays.asList(
-      "Binary    : Expr left, Token operator, Expr right",
-      "Call      : Expr callee, Token paren, List<Expr> arguments",
+      "Binary    : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+      "Call      : Expr callee, Token paren, List<Expr> arguments | Stmt.Function inlined, CallCache cache",
       "Grouping  : Expr expression",
       "Literal   : Object value",
-      "Unary     : Token operator, Expr right",
-      "Variable  : Token identifier",
-      "Assign    : Token identifier, Expr value",
+      "Unary     : Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+      "Variable  : Token identifier | int depth = Resolver.GLOBAL, int slot",
+      "Assign    : Token identifier, Expr value | int depth = Resolver.GLOBAL, int slot",
       "Logic     : Expr left, Token operator, Expr right",
       "Array     : List<Expr> values",
       "Subscript : Expr subscriptee, Token bracket, Expr index",
       "SubscriptAssign : Expr subscriptee, Token bracket, Expr index, Expr value",
       "Lambda    : Stmt.Function function",
-      "Dictionary: List<Expr> dictionary"
+      "Dictionary: List<Expr> dictionary",
+      "Invariant : Variable cache, Assign store"
     ));
     defineAst(outputDir, "Stmt", Arrays.asList(
       "Expression       : Expr expression",
-      "Function         : Token identifier, List<Token> params, List<Stmt> body",
+      "Function         : Token identifier, List<Token> params, List<Stmt> body | int size, boolean parallel, boolean pure, boolean callsOwnGlobal",
       "Print            : Expr expression", 
       "VarDeclaration   : Token identifier, Expr initialiser",
-      "Block            : List<Stmt> statements",
+      "Block            : List<Stmt> statements | int size",
       "If               : Expr condition, Stmt thenStmt, Stmt elseStmt",
       "While            : Expr condition, Stmt body",
-      "Return           : Token keyword, Expr value",
+      "Return           : Token keyword, Expr value | boolean tailCall",
       "Break            : Token keyword",
       "Continue         : Token keyword"
     ));
@@ -54,11 +63,12 @@ public class GenerateAst {
     writer.println();
     writer.println("import java.util.List;");
     // writer.println();
-    writer.println("abstract class " + baseName + " {");
+    // public, so that the compiler in com.timfan.lox.vm can walk the same trees the interpreter does.
+    writer.println("public abstract class " + baseName + " {");
     
     // making the visitor interface (how clients, like the parser or interpreter, can interact with Expr objects).
     defineVisitor(writer, baseName, types);
-    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+    writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 
     // making subclasses for each type of subexpression.
     for (String type : types) {
@@ -74,9 +84,16 @@ public class GenerateAst {
   private static void defineType(
       PrintWriter writer, String baseName,
       String className, String fieldList) {
-    writer.println("  static class " + className + " extends " +
+    writer.println("  public static class " + className + " extends " +
         baseName + " {");
 
+    // split off the fields the Resolver fills in, if there are any.
+    String[] resolvedFields = new String[0];
+    if (fieldList.contains("|")) {
+      resolvedFields = fieldList.split("\\|")[1].trim().split(", ");
+      fieldList = fieldList.split("\\|")[0].trim();
+    }
+
     // Constructor.
     writer.println("    " + className + "(" + fieldList + ") {");
 
@@ -91,11 +108,14 @@ public class GenerateAst {
 
     // Fields.
     for (String field : fields) {
-      writer.println("    final " + field + ";");
+      writer.println("    public final " + field + ";");
+    }
+    for (String field : resolvedFields) {
+      writer.println("    public " + field + ";");
     }
 
     writer.println("    @Override");
-    writer.println("    <R> R accept(Visitor<R> visitor) {");
+    writer.println("    public <R> R accept(Visitor<R> visitor) {");
     writer.println("      return visitor.visit" + className + baseName + "(this);");
     writer.println("    }");
     writer.println("  }");
@@ -130,7 +150,7 @@ public class GenerateAst {
       writer.println(s);
     }
     // first, each customer needs to be able to read the same menu.
-    writer.println("  interface Visitor<R> {");
+    writer.println("  public interface Visitor<R> {");
     // making a menu item for each kind of customer.
     for (String type : types) {
       String typeName = type.split(":")[0].trim();